@@ -0,0 +1,73 @@
+package com.project5;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class is used to measure the encryption of the control channel. Every
+ * message is sealed with the AES-GCM session key, measured here per message
+ * size. A message is only accepted once, so opening is measured together
+ * with sealing a fresh message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CryptoBenchmark {
+
+	@Param({ "64", "1024", "16384", "262144" })
+	public int messageSize;
+
+	private SessionCipher sender;
+	private SessionCipher receiver;
+	private byte[] message;
+
+	/**
+	 * This method is used to make a session key and a message
+	 * @throws GeneralSecurityException
+	 */
+	@Setup
+	public void setup() throws GeneralSecurityException {
+		byte[] sessionKey = SessionCipher.generateKey();
+		sender = new SessionCipher(sessionKey, true);
+		receiver = new SessionCipher(sessionKey, false);
+		message = new byte[messageSize];
+		new Random(42).nextBytes(message);
+	}
+
+	/**
+	 * This method is used to measure sealing a message
+	 * @return
+	 * @throws GeneralSecurityException
+	 */
+	@Benchmark
+	public byte[] encrypt() throws GeneralSecurityException {
+		return sender.encrypt(message);
+	}
+
+	/**
+	 * This method is used to measure sealing a message and then opening and
+	 * authenticating it
+	 * @return
+	 * @throws GeneralSecurityException
+	 */
+	@Benchmark
+	public byte[] roundTrip() throws GeneralSecurityException {
+		return receiver.decrypt(sender.encrypt(message));
+	}
+}
@@ -0,0 +1,146 @@
+package com.project5;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * This class is used to measure building, framing and parsing control
+ * messages, for a download request and for a full batch of search results
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FramingBenchmark {
+
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(Settings.RESULT_BATCH_SIZE * 2);
+	private final DataOutputStream output = new DataOutputStream(bytes);
+	private byte[] downloadFrame;
+	private byte[] resultFrame;
+
+	/**
+	 * This method is used to frame one message of each kind to parse
+	 * @throws IOException
+	 */
+	@Setup
+	public void setup() throws IOException {
+		downloadFrame = frame(download());
+		resultFrame = frame(results());
+	}
+
+	/**
+	 * This method is used to measure building and framing a download request
+	 * @return
+	 * @throws IOException
+	 */
+	@Benchmark
+	public int encodeDownload() throws IOException {
+		bytes.reset();
+		Frames.write(output, download().toBytes());
+		return bytes.size();
+	}
+
+	/**
+	 * This method is used to measure reading and parsing a download request
+	 * @param blackhole
+	 * @throws IOException
+	 */
+	@Benchmark
+	public void decodeDownload(Blackhole blackhole) throws IOException {
+		Message message = Message.parse(Frames.read(new DataInputStream(new ByteArrayInputStream(downloadFrame))));
+		blackhole.consume(message.opcode());
+		blackhole.consume(message.getString());
+		blackhole.consume(message.getString());
+		blackhole.consume(message.getString());
+		blackhole.consume(message.getInt());
+		blackhole.consume(message.getString());
+		blackhole.consume(message.getLong());
+		blackhole.consume(message.getLong());
+		blackhole.consume(message.getInt());
+		blackhole.consume(message.getByte());
+	}
+
+	/**
+	 * This method is used to measure batching and framing search results
+	 * @return
+	 * @throws IOException
+	 */
+	@Benchmark
+	public int encodeResults() throws IOException {
+		bytes.reset();
+		Frames.write(output, results().toBytes());
+		return bytes.size();
+	}
+
+	/**
+	 * This method is used to measure reading and parsing a batch of search
+	 * results
+	 * @param blackhole
+	 * @throws IOException
+	 */
+	@Benchmark
+	public void decodeResults(Blackhole blackhole) throws IOException {
+		Message message = Message.parse(Frames.read(new DataInputStream(new ByteArrayInputStream(resultFrame))));
+		blackhole.consume(message.getString());
+		blackhole.consume(message.getInt());
+		while (message.hasRemaining()) {
+			blackhole.consume(message.getLong());
+			blackhole.consume(message.getString());
+		}
+	}
+
+	/**
+	 * This method is used to build a download request like a downloader does
+	 * @return
+	 */
+	private static Message download() {
+		return Message.of(Protocol.DOWNLOAD).putString("uploader").putString("holiday-photos-2023.zip")
+				.putString("192.168.1.20").putInt(5001).putString("k8Jz3Qp0XvR2mL7w").putLong(3L * Settings.PIECE_SIZE)
+				.putLong(64L * Settings.PIECE_SIZE).putInt(120).putByte(DataChannel.CODEC_DEFLATE);
+	}
+
+	/**
+	 * This method is used to build the first full batch of search results
+	 * @return
+	 */
+	private static Message results() {
+		ArrayList<Message> sent = new ArrayList<>();
+		ResultBatcher batcher = new ResultBatcher(sent::add,
+				Message.of(Protocol.RESULT).putString("searcher").putInt(7));
+		for (int i = 0; sent.isEmpty(); i++) {
+			batcher.add("holiday-photo-" + i + ".jpg", 1024L * 1024 + i);
+		}
+		return sent.get(0);
+	}
+
+	/**
+	 * This method is used to frame a message
+	 * @param message
+	 * @return
+	 * @throws IOException
+	 */
+	private byte[] frame(Message message) throws IOException {
+		bytes.reset();
+		Frames.write(output, message.toBytes());
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,74 @@
+package com.project5;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class is used to measure the RSA wrapping of the session key, done
+ * once per connection with the same transformation as
+ * ClientManager.encryptWithPublicKey and Client.decryptWithPrivateKey
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KeyExchangeBenchmark {
+
+	private KeyPair keyPair;
+	private byte[] sessionKey;
+	private byte[] wrappedKey;
+
+	/**
+	 * This method is used to make a key pair and a wrapped session key
+	 * @throws GeneralSecurityException
+	 */
+	@Setup
+	public void setup() throws GeneralSecurityException {
+		KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+		keyPairGenerator.initialize(2048);
+		keyPair = keyPairGenerator.generateKeyPair();
+		sessionKey = SessionCipher.generateKey();
+		wrappedKey = encryptWithPublicKey();
+	}
+
+	/**
+	 * This method is used to measure wrapping the session key
+	 * @return
+	 * @throws GeneralSecurityException
+	 */
+	@Benchmark
+	public byte[] encryptWithPublicKey() throws GeneralSecurityException {
+		Cipher cipher = Cipher.getInstance("RSA");
+		cipher.init(Cipher.ENCRYPT_MODE, keyPair.getPublic());
+		return cipher.doFinal(sessionKey);
+	}
+
+	/**
+	 * This method is used to measure unwrapping the session key
+	 * @return
+	 * @throws GeneralSecurityException
+	 */
+	@Benchmark
+	public byte[] decryptWithPrivateKey() throws GeneralSecurityException {
+		Cipher cipher = Cipher.getInstance("RSA");
+		cipher.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
+		return cipher.doFinal(wrappedKey);
+	}
+}
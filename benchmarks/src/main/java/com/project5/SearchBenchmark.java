@@ -0,0 +1,92 @@
+package com.project5;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * This class is used to measure answering a search the way searchForFiles
+ * does, looking the text up in the FileIndex and batching the matches, over a
+ * synthetic shared directory of empty files. Creating the largest directory
+ * takes a while, it is made once per fork.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+
+	private static final String[] KINDS = { "holiday-photo-%d.jpg", "Lecture %d notes.pdf", "track_%d.mp3",
+			"backup-%d.tar.gz", "Report Q%d draft.docx" };
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int files;
+
+	// a fifth of the files, one in a thousand, and none
+	@Param({ "track", "4242", "missing" })
+	public String query;
+
+	private File directory;
+	private FileIndex index;
+
+	/**
+	 * This method is used to fill a temporary directory and index it
+	 * @throws IOException
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("search-benchmark").toFile();
+		for (int i = 0; i < files; i++) {
+			new File(directory, String.format(KINDS[i % KINDS.length], i)).createNewFile();
+		}
+		index = new FileIndex(directory);
+		index.start();
+	}
+
+	/**
+	 * This method is used to remove the directory
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		index.close();
+		File[] children = directory.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				child.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	/**
+	 * This method is used to measure one search, results included
+	 * @param blackhole
+	 */
+	@Benchmark
+	public void searchForFiles(Blackhole blackhole) {
+		ResultBatcher results = new ResultBatcher(blackhole::consume,
+				Message.of(Protocol.RESULT).putString("searcher").putInt(1));
+		for (FileIndex.Entry file : index.search(query)) {
+			results.add(file);
+		}
+		results.flush();
+	}
+}
@@ -0,0 +1,184 @@
+package com.project5;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class is used to measure uploading a file to a download over a
+ * loopback data connection, through Client.sendFileContents and
+ * Download.receiveRange, so chunk sizing, throttling, compression, the stop
+ * and pause checks and piece verification are all measured. One operation is
+ * one connection and the whole range. The buffer size is a setting, so each
+ * size runs in a fork of its own. Uploads without zero copy can be measured
+ * with -jvmArgs -Dproject5.zeroCopyUpload=false.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferBenchmark {
+
+	private static final int RANGE_SIZE = 64 * 1024 * 1024;
+	private static final String FILE_NAME = "transfer-benchmark.bin";
+
+	@Param({ "false", "true" })
+	public boolean compress;
+
+	private Path source;
+	private FileChannel sourceChannel;
+	private ServerSocketChannel listener;
+	private ExecutorService uploader;
+	private Download download;
+
+	/**
+	 * This method is used to make the file, start a download of it that
+	 * knows its piece hashes and check that one range arrives verified
+	 * @throws Exception
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		// the download is one byte longer than the range, so it never completes and can take the range again
+		source = Files.createTempFile("transfer-benchmark", ".bin");
+		byte[] block = new byte[1024 * 1024];
+		new Random(42).nextBytes(block);
+		for (int i = 0; i < RANGE_SIZE / block.length; i++) {
+			Files.write(source, block, StandardOpenOption.APPEND);
+		}
+		Files.write(source, new byte[1], StandardOpenOption.APPEND);
+		sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+
+		Files.createDirectories(Paths.get("localFiles"));
+		Files.deleteIfExists(TransferState.sidecarPath(FILE_NAME));
+		Files.deleteIfExists(TransferState.partPath(FILE_NAME));
+		download = new Download(new Client(), null, FILE_NAME, sourceChannel.size(), new ArrayList<>());
+		download.hashesReceived("benchmark", PieceHashes.compute(source.toFile(), Settings.PIECE_SIZE));
+
+		listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		uploader = Executors.newSingleThreadExecutor();
+
+		transfer();
+		if (download.getProgress().getDone() != RANGE_SIZE) {
+			throw new IllegalStateException("Only " + download.getProgress().getDone() + " of " + RANGE_SIZE
+					+ " bytes were verified");
+		}
+	}
+
+	/**
+	 * This method is used to close everything and remove the files
+	 * @throws IOException
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		uploader.shutdownNow();
+		listener.close();
+		sourceChannel.close();
+		Files.deleteIfExists(source);
+		Files.deleteIfExists(TransferState.sidecarPath(FILE_NAME));
+		Files.deleteIfExists(TransferState.partPath(FILE_NAME));
+	}
+
+	/**
+	 * This method is used to measure the range with buffers of 16 KB
+	 * @return
+	 * @throws Exception
+	 */
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = "-Dproject5.bufferSize=16384")
+	public long buffer16k() throws Exception {
+		return transfer();
+	}
+
+	/**
+	 * This method is used to measure the range with buffers of 64 KB
+	 * @return
+	 * @throws Exception
+	 */
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = "-Dproject5.bufferSize=65536")
+	public long buffer64k() throws Exception {
+		return transfer();
+	}
+
+	/**
+	 * This method is used to measure the range with buffers of 256 KB
+	 * @return
+	 * @throws Exception
+	 */
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = "-Dproject5.bufferSize=262144")
+	public long buffer256k() throws Exception {
+		return transfer();
+	}
+
+	/**
+	 * This method is used to measure the range with buffers of 1 MB
+	 * @return
+	 * @throws Exception
+	 */
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = "-Dproject5.bufferSize=1048576")
+	public long buffer1m() throws Exception {
+		return transfer();
+	}
+
+	/**
+	 * This method is used to upload the range over a new connection and
+	 * receive it into the download
+	 * @return the bytes sent
+	 * @throws Exception
+	 */
+	private long transfer() throws Exception {
+		String key = download.expectRange(0, RANGE_SIZE);
+		Future<Long> upload = uploader.submit(() -> {
+			try (SocketChannel channel = SocketChannel.open()) {
+				ChunkSizer sizer = ChunkSizer.connect(channel, listener.getLocalAddress());
+				TransferProgress progress = new TransferProgress(true, FILE_NAME, RANGE_SIZE);
+				return Client.sendFileContents(sourceChannel, channel, 0, RANGE_SIZE, progress, sizer, compress);
+			}
+		});
+		ByteBuffer in = BufferPool.acquire();
+		try (SocketChannel channel = listener.accept()) {
+			in.flip(); // nothing read past a header
+			download.receiveRange(channel, in, sourceChannel.size(), key, 0, RANGE_SIZE);
+		} finally {
+			BufferPool.release(in);
+		}
+		long sent = upload.get();
+		if (sent != RANGE_SIZE) {
+			throw new IOException("Upload stopped at byte " + sent);
+		}
+		return sent;
+	}
+}
@@ -0,0 +1,80 @@
+package com.project5;
+
+import java.io.InterruptedIOException;
+
+/**
+ * This class is used to share the client's bandwidth between its transfers.
+ * Uploads and downloads each have a global bucket, and every transfer has a
+ * bucket of its own on top. The configured reserve is kept out of the global
+ * limits, so the control channel to the server stays responsive while the
+ * data channels are busy.
+ */
+public class Bandwidth {
+
+	private static final TokenBucket uploads = new TokenBucket(dataRate(Settings.UPLOAD_LIMIT));
+	private static final TokenBucket downloads = new TokenBucket(dataRate(Settings.DOWNLOAD_LIMIT));
+
+	/**
+	 * This method is used to get the rate left for data once the control
+	 * reserve is taken out of a limit
+	 * @param limit kilobytes per second, 0 for no limit
+	 * @return bytes per second, 0 for no limit
+	 */
+	private static long dataRate(int limit) {
+		if (limit <= 0) {
+			return 0;
+		}
+		// never squeeze the data channels below a tenth of the limit
+		return Math.max(limit / 10, limit - Settings.CONTROL_RESERVE) * 1024L;
+	}
+
+	/**
+	 * This method is used to get the throttle of a new upload
+	 * @return
+	 */
+	public static Throttle upload() {
+		return new Throttle(uploads);
+	}
+
+	/**
+	 * This method is used to get the throttle of a new download connection
+	 * @return
+	 */
+	public static Throttle download() {
+		return new Throttle(downloads);
+	}
+
+	/**
+	 * This class is used to limit one transfer, by its own limit and by the
+	 * global limit of its direction
+	 */
+	public static class Throttle {
+
+		private final TokenBucket global;
+		private final TokenBucket own = new TokenBucket(Settings.TRANSFER_LIMIT * 1024L);
+
+		Throttle(TokenBucket global) {
+			this.global = global;
+		}
+
+		/**
+		 * This method is used to get how many bytes to move at once, small
+		 * steps while limited so transfers take turns often
+		 * @param max the step used without a limit
+		 * @return
+		 */
+		public long step(long max) {
+			return global.isLimited() || own.isLimited() ? Math.min(max, Settings.BUFFER_SIZE) : max;
+		}
+
+		/**
+		 * This method is used to wait until the bytes may be moved
+		 * @param bytes
+		 * @throws InterruptedIOException
+		 */
+		public void acquire(long bytes) throws InterruptedIOException {
+			own.acquire(bytes);
+			global.acquire(bytes);
+		}
+	}
+}
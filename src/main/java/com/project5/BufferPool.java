@@ -0,0 +1,43 @@
+package com.project5;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class is used to share direct buffers between transfers so that the
+ * copy path does not allocate a new buffer for every file
+ */
+public class BufferPool {
+
+	private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger pooled = new AtomicInteger(); // number of idle buffers in the pool
+
+	/**
+	 * This method is used to take a cleared buffer from the pool
+	 * @return
+	 */
+	public static ByteBuffer acquire() {
+		ByteBuffer buffer = pool.poll();
+		if (buffer == null) {
+			// pool is empty, allocate a new direct buffer
+			return ByteBuffer.allocateDirect(Settings.BUFFER_SIZE);
+		}
+		pooled.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * This method is used to give a buffer back to the pool
+	 * @param buffer
+	 */
+	public static void release(ByteBuffer buffer) {
+		// keep at most BUFFER_POOL_SIZE idle buffers, the rest are left to the GC
+		if (buffer != null && pooled.incrementAndGet() <= Settings.BUFFER_POOL_SIZE) {
+			pool.offer(buffer);
+		} else if (buffer != null) {
+			pooled.decrementAndGet();
+		}
+	}
+}
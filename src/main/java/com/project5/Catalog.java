@@ -0,0 +1,108 @@
+package com.project5;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the files every logged in client shares, when the server runs in
+ * catalog mode. Clients publish their file list after login and send the
+ * changes as they happen, so a search is answered from here without asking
+ * any client.
+ */
+class Catalog {
+
+	private static final TrigramIndex<Entry> names = new TrigramIndex<>();
+	private static final ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>> owners = new ConcurrentHashMap<>();
+
+	/**
+	 * Adds a shared file, or updates its size
+	 *
+	 * @param owner The client that shares the file
+	 * @param name  The file name
+	 * @param size  The file size
+	 */
+	static void add(String owner, String name, long size) {
+		Entry entry = new Entry(owner, name, size);
+		ConcurrentHashMap<String, Entry> files = owners.computeIfAbsent(owner, key -> new ConcurrentHashMap<>());
+		Entry old = files.put(name, entry);
+		if (old != null) {
+			names.remove(old);
+		}
+		names.put(entry, name);
+	}
+
+	/**
+	 * Removes a file the client no longer shares
+	 *
+	 * @param owner The client that shared the file
+	 * @param name  The file name
+	 */
+	static void remove(String owner, String name) {
+		ConcurrentHashMap<String, Entry> files = owners.get(owner);
+		Entry old = files == null ? null : files.remove(name);
+		if (old != null) {
+			names.remove(old);
+		}
+	}
+
+	/**
+	 * Removes every file of a client that disconnected
+	 *
+	 * @param owner The client that disconnected
+	 */
+	static void removeAll(String owner) {
+		ConcurrentHashMap<String, Entry> files = owners.remove(owner);
+		if (files != null) {
+			for (Entry entry : files.values()) {
+				names.remove(entry);
+			}
+		}
+	}
+
+	/**
+	 * Finds the shared files whose name contains the text, ignoring case
+	 *
+	 * @param text The search text
+	 * @return The matching files of every client
+	 */
+	static List<Entry> search(String text) {
+		List<Entry> matches = names.search(text);
+		ArrayList<Entry> current = new ArrayList<>(matches.size());
+		for (Entry entry : matches) {
+			// skip entries replaced or removed since the index was read
+			Map<String, Entry> files = owners.get(entry.owner);
+			if (files != null && files.get(entry.name) == entry) {
+				current.add(entry);
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Gets the number of shared files in the catalog
+	 *
+	 * @return The number of files
+	 */
+	static int size() {
+		return names.size();
+	}
+
+	/**
+	 * One file shared by one client. Entries are compared by identity, a
+	 * changed file gets a new entry.
+	 */
+	static class Entry {
+
+		final String owner;
+		final String name;
+		final long size;
+
+		Entry(String owner, String name, long size) {
+			this.owner = owner;
+			this.name = name;
+			this.size = size;
+		}
+	}
+}
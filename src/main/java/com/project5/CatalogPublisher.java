@@ -0,0 +1,44 @@
+package com.project5;
+
+/**
+ * This class is used to keep the server's catalog of this client's shared
+ * files current. The whole list is published once after login, after that
+ * only the files that are added, changed or removed are sent.
+ */
+public class CatalogPublisher implements FileIndex.Listener {
+
+	private final Client client;
+
+	/**
+	 * This is the constructor for the CatalogPublisher class
+	 * @param client
+	 */
+	public CatalogPublisher(Client client) {
+		this.client = client;
+	}
+
+	/**
+	 * This method is used to publish every shared file and follow the index
+	 * from then on
+	 * @param index
+	 */
+	public void publish(FileIndex index) {
+		// listen first so no change is missed, a file sent twice is harmless
+		index.addListener(this);
+		ResultBatcher batches = new ResultBatcher(client::sendMessage, Message.of(Protocol.CATALOG_ADD));
+		for (FileIndex.Entry file : index.entries()) {
+			batches.add(file);
+		}
+		batches.flush();
+	}
+
+	@Override
+	public void added(FileIndex.Entry file) {
+		client.sendMessage(Message.of(Protocol.CATALOG_ADD).putLong(file.size).putString(file.name));
+	}
+
+	@Override
+	public void removed(String fileName) {
+		client.sendMessage(Message.of(Protocol.CATALOG_REMOVE).putString(fileName));
+	}
+}
@@ -0,0 +1,74 @@
+package com.project5;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * This class is used to compress the chunks of one upload with Deflate at a
+ * low level. Every chunk is compressed on its own so any chunk can be sent
+ * raw instead. A chunk that does not shrink by a tenth is sent raw and the
+ * next few chunks are not even tried, twice as many after every miss, so
+ * media and archives cost little CPU. Compression also stops once the upload
+ * moves more file bytes per second than the configured limit, where the
+ * link is faster than compressing it.
+ */
+public class ChunkCompressor {
+
+	private static final int MAX_SKIP = 64; // most chunks sent raw before trying again
+	private static final double SMOOTHING = 0.25; // weight of the newest throughput sample
+
+	private final Deflater deflater = new Deflater(Settings.COMPRESSION_LEVEL);
+	private int skip = 0; // chunks left to send raw without trying
+	private int backoff = 1; // chunks to skip after the next miss
+	private double rate = 0; // file bytes per second, 0 until measured
+
+	/**
+	 * This method is used to compress a chunk if it is worth it
+	 * @param raw the chunk in read mode, left unchanged
+	 * @param out receives the compressed bytes from its position, in write mode
+	 * @return the compressed length, or -1 to send the chunk raw
+	 */
+	public int compress(ByteBuffer raw, ByteBuffer out) {
+		if (rate > Settings.COMPRESS_BELOW * 1024L) {
+			return -1;
+		}
+		if (skip > 0) {
+			skip--;
+			return -1;
+		}
+		int length = raw.remaining();
+		// only a tenth smaller or better is worth the receiver's time
+		out.limit(Math.min(out.capacity(), out.position() + length - length / 10));
+		deflater.reset();
+		deflater.setInput(raw.duplicate());
+		deflater.finish();
+		int compressed = deflater.deflate(out);
+		if (!deflater.finished()) {
+			out.clear();
+			skip = backoff;
+			backoff = Math.min(MAX_SKIP, backoff * 2);
+			return -1;
+		}
+		backoff = 1;
+		return compressed;
+	}
+
+	/**
+	 * This method is used to measure the file bytes of a chunk that was sent
+	 * @param bytes
+	 * @param nanos how long reading, compressing and sending it took
+	 */
+	public void sent(long bytes, long nanos) {
+		if (nanos > 0) {
+			double sample = bytes * 1e9 / nanos;
+			rate = rate == 0 ? sample : rate + (sample - rate) * SMOOTHING;
+		}
+	}
+
+	/**
+	 * This method is used to free the native memory of the compressor
+	 */
+	public void close() {
+		deflater.end();
+	}
+}
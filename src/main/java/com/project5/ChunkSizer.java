@@ -0,0 +1,103 @@
+package com.project5;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+
+/**
+ * This class is used to size the chunks of one upload from what the
+ * connection can carry. The round trip time is taken from how long the
+ * connection took to open and the throughput is measured while sending. A
+ * chunk covers twice the bandwidth-delay product, so one call keeps the
+ * link full, and a few milliseconds of sending, so fast links make few
+ * calls. Chunks start at one buffer and at most double at a time, and stay
+ * short enough that a pause or stop is seen within a quarter second.
+ */
+public class ChunkSizer {
+
+	private static final int MAX_CHUNK = 8 * 1024 * 1024; // largest chunk and send buffer
+	private static final double CHUNK_TIME = 0.02; // seconds of sending worth one chunk on fast links
+	private static final double MAX_CHUNK_TIME = 0.25; // seconds, keeps pauses responsive
+	private static final double SMOOTHING = 0.25; // weight of the newest throughput sample
+
+	private final double rtt; // seconds
+	private double rate = 0; // bytes per second, 0 until measured
+	private int chunk = Settings.BUFFER_SIZE;
+
+	/**
+	 * This is the constructor for the ChunkSizer class
+	 * @param rttNanos the time the connection took to open
+	 */
+	public ChunkSizer(long rttNanos) {
+		this.rtt = rttNanos / 1e9;
+	}
+
+	/**
+	 * This method is used to open a connection with the configured socket
+	 * buffer, timing the handshake as the round trip time
+	 * @param channel an unconnected channel
+	 * @param address
+	 * @return the sizer for the connection
+	 * @throws IOException
+	 */
+	public static ChunkSizer connect(SocketChannel channel, SocketAddress address) throws IOException {
+		if (Settings.SOCKET_BUFFER > 0) {
+			// set before connecting so the window scale covers it
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, Settings.SOCKET_BUFFER);
+		}
+		long start = System.nanoTime();
+		channel.connect(address);
+		return new ChunkSizer(System.nanoTime() - start);
+	}
+
+	/**
+	 * This method is used to get the size of the next chunk
+	 * @return
+	 */
+	public int next() {
+		return chunk;
+	}
+
+	/**
+	 * This method is used to measure a chunk that was sent and size the next
+	 * one, growing the send buffer when the link holds more than it
+	 * @param channel
+	 * @param bytes
+	 * @param nanos how long sending the chunk took
+	 */
+	public void sent(SocketChannel channel, long bytes, long nanos) {
+		if (nanos <= 0) {
+			return;
+		}
+		double sample = bytes * 1e9 / nanos;
+		rate = rate == 0 ? sample : rate + (sample - rate) * SMOOTHING;
+
+		double bdp = rate * rtt;
+		long target = (long) Math.max(2 * bdp, rate * CHUNK_TIME);
+		target = Math.min(target, (long) (rate * MAX_CHUNK_TIME));
+		target = Math.max(Settings.BUFFER_SIZE, Math.min(MAX_CHUNK, target));
+		chunk = (int) Math.min(target, 2L * chunk);
+
+		if (Settings.SOCKET_BUFFER == 0) {
+			tuneSendBuffer(channel, (int) Math.min(MAX_CHUNK, 2 * bdp));
+		}
+	}
+
+	/**
+	 * This method is used to raise the send buffer to the bandwidth-delay
+	 * product. It is only ever raised, and left alone while the system's
+	 * buffer is already larger.
+	 * @param channel
+	 * @param size
+	 */
+	private void tuneSendBuffer(SocketChannel channel, int size) {
+		try {
+			if (size > channel.getOption(StandardSocketOptions.SO_SNDBUF)) {
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, size);
+			}
+		} catch (IOException e) {
+			// keep the buffer the system chose
+		}
+	}
+}
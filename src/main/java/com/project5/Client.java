@@ -1,23 +1,34 @@
 package com.project5;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.crypto.Cipher;
 import javafx.application.Platform;
@@ -27,16 +38,33 @@ import javafx.application.Platform;
  */
 public class Client {
 
+	// runtime metrics of this client, see Metrics
+	static final Metrics metrics = new Metrics("Client");
+	static final LongAdder bytesUp = metrics.counter("bytes.up");
+	static final LongAdder bytesDown = metrics.counter("bytes.down");
+	private static final Metrics.Histogram firstResult = metrics.histogram("search.firstResult", "us");
+	private static final Metrics.Histogram searchDone = metrics.histogram("search.done", "us");
+	private static final Metrics.Histogram throughput = metrics.histogram("transfer.throughput", "KB/s"); // per finished transfer
+
 	public volatile ArrayList<String> resultList = new ArrayList<>(); // list of files
 	public volatile HashMap<String, String> resultMap = new HashMap<>();
+	public volatile HashMap<String, Long> resultSizes = new HashMap<>(); // size of each result
+	public volatile HashMap<String, ArrayList<String>> resultSources = new HashMap<>(); // peers with each result
 	private volatile Socket socket = null; // the client socket
-	private volatile ObjectInputStream objectInputStream;
-	private volatile ObjectOutputStream objectOutputStream;
+	private volatile DataInputStream dataInputStream;
+	private volatile DataOutputStream dataOutputStream;
 	private InteractController interactController; // controls interacts between the user and UI
 	public Boolean checkedUsername = false; // has client username been checked against others
 	public Boolean usernameOK = false; // is the client username valid
 	private volatile KeyPair keyPair;
-	private volatile PublicKey serverKey;
+	private volatile SessionCipher sessionCipher; // symmetric cipher for all traffic after the key exchange
+	private volatile FileIndex fileIndex; // in-memory index of localFiles
+	private volatile HashManifest hashManifest; // piece hashes of localFiles, kept on disk
+	private final AtomicInteger queries = new AtomicInteger(); // last query id used
+	private volatile int currentQuery = 0; // results of any other query are stale
+	private long searchStarted; // System.nanoTime() when the current query was sent
+	private boolean searchAnswered; // a result of the current query arrived
+	private final ConcurrentHashMap<String, CompletableFuture<PieceHashes>> hashRequests = new ConcurrentHashMap<>(); // peer/file -> hashes asked for
 
 	/**
 	 * This is the constructor for the Client class
@@ -51,18 +79,25 @@ public class Client {
 			// initialize instance variables
 			this.socket = socket;
 			this.interactController = interactController;
+			downloads = new DownloadManager(this, serverSocket);
+			downloads.start();
+			uploads.start();
+			metrics.gauge("transfers.shown", progress::size);
+			metrics.gauge("transfers.active", () -> progress.stream().filter(TransferProgress::isActive).count());
+			metrics.register();
 
 			// initialize the input and output streams
 			keyPair = generateKeyPair();
-			objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
-			objectOutputStream.writeObject(keyPair.getPublic());
+			dataOutputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			Frames.write(dataOutputStream, Frames.withVersion(keyPair.getPublic().getEncoded()));
 			System.out.println("Sent Public Key");
 
-			// receive the server's public key
-			objectInputStream = new ObjectInputStream(socket.getInputStream());
-			serverKey = (PublicKey) objectInputStream.readObject();
+			// receive the session key, wrapped with our public key
+			dataInputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			byte[] wrappedKey = Frames.read(dataInputStream);
+			sessionCipher = new SessionCipher(decryptWithPrivateKey(wrappedKey), false);
 
-			System.out.println("Received Public Key");
+			System.out.println("Received Session Key");
 			System.out.println();
 
 			// Create a File object representing the directory
@@ -72,6 +107,11 @@ public class Client {
 				// Create the directory
 				directory.mkdirs();
 			}
+			// index the shared files so searches do not touch the disk
+			fileIndex = new FileIndex(directory);
+			fileIndex.start();
+			hashManifest = new HashManifest(directory);
+			hashManifest.start(fileIndex);
 		} catch (Exception e) {
 			e.printStackTrace();
 			closeAllSreams();
@@ -79,15 +119,21 @@ public class Client {
 
 	}
 
+	/**
+	 * This is the constructor for a client that is not connected to a server
+	 * and only moves file data, as the benchmarks use it
+	 */
+	Client() {
+	}
+
 	/**
 	 * This method is used to send a message to the server
 	 * @param message
 	 */
-	public void sendMessage(String message) {
+	public void sendMessage(Message message) {
 		try {
-			// encrypt the message with the server's public key
-			byte[] encryptedData = encryptWithPublicKey(message.getBytes());
-			objectOutputStream.writeObject(encryptedData);
+			// encrypt the message with the session key, in nonce order with other senders
+			sessionCipher.encryptTo(message.toBytes(), frame -> Frames.write(dataOutputStream, frame));
 		} catch (Exception e) {
 			e.printStackTrace();
 			closeAllSreams();
@@ -98,82 +144,115 @@ public class Client {
 	 * This method is used to receive a message from the server
 	 */
 	public void receiver() {
-		new Thread(new Runnable() {
+		Workers.start("receiver", new Runnable() {
 
 			@Override
 			public void run() {
 
 				try {
-					// message from server
-					String msg;
 					// while the socket is connected
 					while (socket.isConnected()) {
 						// read the message from the server
-						byte[] messageBytes = (byte[]) objectInputStream.readObject();
-						msg = new String(decryptWithPrivateKey(messageBytes));
-						System.out.println(msg);
-						// if the message is null or disconnect message, close all streams
-						if (msg == null || msg.equals("##DISCONNECT")) { // close streams upon disconnect from server
+						byte[] messageBytes = Frames.read(dataInputStream);
+						Message message = Message.parse(sessionCipher.decrypt(messageBytes));
+						System.out.println(Protocol.name(message.opcode()));
+						switch (message.opcode()) {
+						case Protocol.DISCONNECT:
+							// close streams upon disconnect from server
 							closeAllSreams();
-							break;
-						}
-						// if the message is a username taken message, show error message
-						if (msg.equals("##USERNAMETAKEN")) {
+							return;
+						case Protocol.LOGIN_TAKEN:
+							// if the username is taken, show error message
 							checkedUsername = true; // username checked
 							Platform.runLater(() -> interactController
-									.showErrorDialog("Username is taken. Please try a different username.")); // error
-																												// message
-																												// if
-																												// username
-																												// taken
-						}
-						if (msg.equals("##USERNAMEOK")) {
+									.showErrorDialog("Username is taken. Please try a different username."));
+							break;
+						case Protocol.LOGIN_OK:
 							checkedUsername = true; // username is checked
 							usernameOK = true; // username is not taken
-						}
-						if (msg.startsWith("##SEARCH")) {
-							searchForFiles(msg); // add user to list of clients
-						}
-						if (msg.startsWith("##RESULT")) {
-							handleResults(msg); // add user to list of clients
-						}
-						if (msg.startsWith("##DOWNLOAD")) {
-							handleDownloadRequest(msg); // add user to list of clients
+							if (message.getByte() != 0) {
+								// the server answers searches itself, give it the file list
+								new CatalogPublisher(Client.this).publish(fileIndex);
+							}
+							break;
+						case Protocol.SEARCH:
+							searchForFiles(message); // answer a search from another peer
+							break;
+						case Protocol.RESULT:
+							handleResults(message); // add results to the file list
+							break;
+						case Protocol.SEARCH_DONE:
+							handleSearchDone(message); // every peer answered, or the deadline passed
+							break;
+						case Protocol.DOWNLOAD:
+							handleDownloadRequest(message); // upload a file to another peer
+							break;
+						case Protocol.HASH_REQUEST:
+							handleHashRequest(message); // describe a shared file to a downloader
+							break;
+						case Protocol.HASH_LIST:
+							handleHashList(message); // hashes for a download
+							break;
+						case Protocol.UPLOAD_QUEUED:
+							handleUploadQueued(message); // a range of a download waits for an upload slot
+							break;
+						case Protocol.STATS:
+							interactController.showStats(getStats(), message.getString()); // the server's metrics
+							break;
+						default:
+							System.out.println("Ignoring unknown message " + message.opcode());
 						}
 					}
 				} catch (Exception e) {
 					closeAllSreams();
 				}
 			}
-		}).start();
+		});
 	}
 
 	/**
-	 * This method is used to search for files in the localFiles directory
+	 * This method is used to search for files in the index of the localFiles
+	 * directory
 	 * 
 	 * @param message
 	 */
-	private void searchForFiles(String message) {
-		// split the message into parts
-		String[] parts = message.split(",", 3);
-		String searcher = parts[1];
-		String searchText = parts[2];
-		// convert the search text to lower case
-		searchText = searchText.toLowerCase();
-		File directory = new File("localFiles");
-		File[] fileList = directory.listFiles();
-
-		// loop through the files in the directory
-		for (File file : fileList) {
-			String fileName = file.getName();
-			fileName = fileName.toLowerCase();
-			// if the file name contains the search text, send the result to the server
-			if (fileName.contains(searchText)) {
-				String searchResult = file.getName();
-				sendMessage("##RESULT," + searcher + "," + searchResult);
-			}
+	private void searchForFiles(Message message) throws IOException {
+		// read the searcher, the query id and the search text
+		String searcher = message.getString();
+		int queryId = message.getInt();
+		String searchText = message.getString();
+
+		// look the text up in the index of the shared files
+		ResultBatcher results = new ResultBatcher(this, searcher, queryId);
+		for (FileIndex.Entry file : fileIndex.search(searchText)) {
+			// send the matching files to the server in batches
+			results.add(file);
 		}
+		results.flush();
+		// tell the server this peer has nothing more for the query
+		sendMessage(Message.of(Protocol.SEARCH_DONE).putString(searcher).putInt(queryId));
+	}
 
+	/**
+	 * This method is used to start a new search. Results of earlier searches
+	 * that are still on their way are dropped from now on.
+	 * @param searchText
+	 */
+	public void search(String searchText) {
+		int queryId;
+		synchronized (this) {
+			queryId = queries.incrementAndGet();
+			currentQuery = queryId;
+			searchStarted = System.nanoTime();
+			searchAnswered = false;
+			// clear the result list and map
+			resultList = new ArrayList<>();
+			resultMap = new HashMap<>();
+			resultSizes = new HashMap<>();
+			resultSources = new HashMap<>();
+		}
+		interactController.updateFileList(new ArrayList<>());
+		sendMessage(Message.of(Protocol.SEARCH).putInt(queryId).putLong(Settings.SEARCH_TIMEOUT).putString(searchText));
 	}
 
 	/**
@@ -181,17 +260,49 @@ public class Client {
 	 * 
 	 * @param message
 	 */
-	private void handleResults(String message) {
-		// split the message into parts
-		String[] parts = message.split(",", 3);
-		String result = parts[2];
-		// if the result is not already in the list, add it to the list
-		if (!resultList.contains(result)) {
-			resultList.add(result);
-			resultMap.put(result, parts[1]);
+	private synchronized void handleResults(Message message) throws IOException {
+		// the uploader and query id are followed by a size and name for every result
+		String uploader = message.getString();
+		if (message.getInt() != currentQuery) {
+			return; // a late answer to an earlier search
+		}
+		if (!searchAnswered) {
+			searchAnswered = true;
+			firstResult.recordSince(searchStarted);
+		}
+		while (message.hasRemaining()) {
+			long size = message.getLong();
+			String result = message.getString();
+			// if the result is not already in the list, add it to the list
+			if (!resultSizes.containsKey(result)) {
+				resultList.add(result);
+				resultMap.put(result, uploader);
+				resultSizes.put(result, size);
+				resultSources.put(result, new ArrayList<>());
+			}
+			// remember every peer that has the same file, for swarm downloads
+			if (resultSizes.get(result) == size && !resultSources.get(result).contains(uploader)) {
+				resultSources.get(result).add(uploader);
+			}
+		}
+		// update the file list once for the whole batch, with a copy the UI can keep
+		interactController.updateFileList(new ArrayList<>(resultList));
+	}
+
+	/**
+	 * This method is used to handle the end of a search
+	 * 
+	 * @param message
+	 */
+	private synchronized void handleSearchDone(Message message) throws IOException {
+		int queryId = message.getInt();
+		int answered = message.getInt();
+		int asked = message.getInt();
+		boolean timedOut = message.getByte() != 0;
+		if (queryId == currentQuery) {
+			searchDone.recordSince(searchStarted);
+			interactController.searchFinished(resultList.size(), answered, asked, timedOut);
 		}
-		// update the file list
-		interactController.updateFileList(resultList);
 	}
 
 	/**
@@ -199,16 +310,137 @@ public class Client {
 	 * 
 	 * @param message
 	 */
-	private void handleDownloadRequest(String message) {
-		// split the message into parts
-		String[] parts = message.split(",", 5);
-		String fileName = parts[1];
-		String downloaderAddress = parts[2];
-		// convert the downloader port to an integer
-		int downloaderPort = Integer.parseInt(parts[3]);
-		String messageKey = parts[4];
-		// upload the file
-		uploadFile(fileName, downloaderAddress, downloaderPort, messageKey);
+	private void handleDownloadRequest(Message message) throws IOException {
+		// read who asks, the file, where to send it and which range
+		String downloader = message.getString();
+		String fileName = message.getString();
+		String downloaderAddress = message.getString();
+		int downloaderPort = message.getInt();
+		String messageKey = message.getString();
+		long offset = message.getLong();
+		long length = message.getLong();
+		boolean sharer = message.getInt() > 0;
+		int codecs = message.getByte();
+		// upload the file once it gets a slot
+		uploadFile(downloader, sharer, codecs, fileName, downloaderAddress, downloaderPort, messageKey, offset,
+				length);
+	}
+
+	/**
+	 * This method is used to handle a range of a download that waits for an
+	 * upload slot at the uploader
+	 * @param message
+	 */
+	private void handleUploadQueued(Message message) throws IOException {
+		String uploader = message.getString();
+		String messageKey = message.getString();
+		int position = message.getInt();
+		downloads.uploadQueued(uploader, messageKey, position);
+	}
+
+	/**
+	 * This method is used to ask the server for its metrics, the answer is
+	 * shown with the client's own
+	 */
+	public void requestStats() {
+		sendMessage(Message.of(Protocol.STATS));
+	}
+
+	/**
+	 * This method is used to describe the client's metrics and the
+	 * throughput of every shown transfer
+	 * @return
+	 */
+	public String getStats() {
+		StringBuilder stats = new StringBuilder(metrics.snapshot());
+		for (TransferProgress transfer : progress) {
+			stats.append(transfer).append(System.lineSeparator());
+		}
+		return stats.toString();
+	}
+
+	/**
+	 * This method is used to get how many files the client shares
+	 * @return
+	 */
+	public int getSharedFileCount() {
+		return fileIndex == null ? 0 : fileIndex.size();
+	}
+
+	/**
+	 * This method is used to ask a peer for the piece hashes of a file
+	 * @param peer
+	 * @param fileName
+	 * @return completes with the hashes, or null if the peer cannot read the file
+	 */
+	public CompletableFuture<PieceHashes> requestHashes(String peer, String fileName) {
+		CompletableFuture<PieceHashes> hashes = new CompletableFuture<>();
+		hashRequests.put(peer + "/" + fileName, hashes);
+		sendMessage(Message.of(Protocol.HASH_REQUEST).putString(peer).putString(fileName).putInt(Settings.PIECE_SIZE));
+		return hashes;
+	}
+
+	/**
+	 * This method is used to stop waiting for hashes that have not arrived
+	 * @param peer
+	 * @param fileName
+	 */
+	public void forgetHashes(String peer, String fileName) {
+		hashRequests.remove(peer + "/" + fileName);
+	}
+
+	/**
+	 * This method is used to hash a shared file for a downloader, off the
+	 * receiver thread since a large file takes a while. Only shared files
+	 * are hashed, with a piece size that keeps the hash list small, anything
+	 * else is answered without hashes.
+	 * @param message
+	 */
+	private void handleHashRequest(Message message) throws IOException {
+		String downloader = message.getString();
+		String fileName = message.getString();
+		int pieceSize = message.getInt();
+		FileIndex.Entry file = fileIndex.get(fileName);
+		if (file == null || !PieceHashes.validPieceSize(file.size, pieceSize)) {
+			System.out.println("Refused to hash " + fileName + " in pieces of " + pieceSize + " bytes");
+			sendMessage(Message.of(Protocol.HASH_LIST).putString(downloader).putString(fileName));
+			return;
+		}
+		transfers.start("hash-" + fileName, () -> {
+			Message reply = Message.of(Protocol.HASH_LIST).putString(downloader).putString(fileName);
+			try {
+				long start = System.nanoTime();
+				PieceHashes hashes = hashManifest.get(fileName, pieceSize);
+				hashes.writeTo(reply);
+				System.out.println("Hashed " + fileName + " in " + (System.nanoTime() - start) / 1000000
+						+ " ms, root " + hashes.rootHex());
+			} catch (IOException | RuntimeException e) {
+				System.out.println("Could not hash " + fileName + ": " + e.getMessage());
+			}
+			sendMessage(reply);
+		});
+	}
+
+	/**
+	 * This method is used to get the piece hashes of the shared files
+	 * @return
+	 */
+	public HashManifest getHashManifest() {
+		return hashManifest;
+	}
+
+	/**
+	 * This method is used to hand received hashes to the download that asked
+	 * for them
+	 * @param message
+	 */
+	private void handleHashList(Message message) throws IOException {
+		String uploader = message.getString();
+		String fileName = message.getString();
+		CompletableFuture<PieceHashes> hashes = hashRequests.remove(uploader + "/" + fileName);
+		if (hashes != null) {
+			hashes.complete(message.hasRemaining() ? PieceHashes.readFrom(message) : null);
+		}
 	}
 
 	/**
@@ -216,9 +448,9 @@ public class Client {
 	 */
 	public void disconnect() {
 		try {
-			// close the object output stream
-			if (objectOutputStream != null) {
-				sendMessage("##DISCONNECT");
+			// close the output stream
+			if (dataOutputStream != null) {
+				sendMessage(Message.of(Protocol.DISCONNECT));
 			} // send disconnect message to server
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -232,12 +464,21 @@ public class Client {
 	 */
 	public void closeAllSreams() {
 		System.out.println("Server disconnected");
-		// close the object input stream
+		// stop every upload and download of this client
+		if (downloads != null)
+			downloads.close();
+		uploads.close();
+		transfers.shutdown();
+		if (fileIndex != null)
+			fileIndex.close();
+		if (hashManifest != null)
+			hashManifest.close();
+		// close the input stream
 		try {
-			if (objectInputStream != null)
-				objectInputStream.close();
-			if (objectOutputStream != null)
-				objectOutputStream.close();
+			if (dataInputStream != null)
+				dataInputStream.close();
+			if (dataOutputStream != null)
+				dataOutputStream.close();
 			if (socket != null)
 				socket.close();
 		} catch (IOException e) {
@@ -251,7 +492,7 @@ public class Client {
 	 * 
 	 * @return
 	 */
-	private String generateMessageKey() {
+	static String generateMessageKey() {
 		// hexadecimal values
 		String[] hexadecimal = { "0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "A", "B", "C", "D", "E", "F" };
 		String messageKey = "";
@@ -268,9 +509,12 @@ public class Client {
 
 	public volatile ServerSocket serverSocket;
 	public volatile int downloadPort;
+	volatile DownloadManager downloads; // every download, on the one download listener
+	final UploadScheduler uploads = new UploadScheduler(this); // uploads running and waiting for a slot
+	private final CopyOnWriteArrayList<TransferProgress> progress = new CopyOnWriteArrayList<>(); // shown transfers
 	public volatile Boolean pauseDownload = false;
-	public volatile String messageKey;
-	public volatile String downloadingFile;
+	final TaskGroup transfers = new TaskGroup("transfer", Settings.MAX_TRANSFERS); // uploads and hashing for peers
+	private final Object pauseLock = new Object();
 
 	/**
 	 * This method is used to start the download server
@@ -279,10 +523,23 @@ public class Client {
 		downloadPort = 5000;
 		// loop until a port is found
 		while (true) {
+			ServerSocketChannel channel = null;
 			try {
-				serverSocket = new ServerSocket(downloadPort);
+				channel = ServerSocketChannel.open();
+				if (Settings.SOCKET_BUFFER > 0) {
+					// set before binding so accepted connections can scale their window to it
+					channel.setOption(StandardSocketOptions.SO_RCVBUF, Settings.SOCKET_BUFFER);
+				}
+				channel.bind(new InetSocketAddress(downloadPort));
+				serverSocket = channel.socket();
 				break;
 			} catch (Exception e) {
+				try {
+					if (channel != null)
+						channel.close();
+				} catch (IOException closeError) {
+					// the port is skipped either way
+				}
 				downloadPort++;
 			}
 		}
@@ -294,156 +551,427 @@ public class Client {
 	 * @param selectedFile
 	 */
 	public void startDownloader(String selectedFile) {
-		// Generate a message key
-		messageKey = generateMessageKey();
-		downloadingFile = selectedFile;
-		System.out.println("Generated key: " + messageKey);
-		downloadFile();
-
-		// Code that gets the hamachi address
-		String hamachiAddress = socket.getLocalAddress().getHostAddress();
-
-		System.out.println("Hamachi Address: " + hamachiAddress);
+		// Download from every peer that has the file when more than one does
+		ArrayList<String> sources;
+		long size;
+		synchronized (this) {
+			if (!resultSources.containsKey(selectedFile)) {
+				// picked from an earlier search whose results have been replaced since
+				interactController.showErrorDialog("File no longer in the results: " + selectedFile);
+				return;
+			}
+			sources = new ArrayList<>(resultSources.get(selectedFile));
+			size = resultSizes.get(selectedFile);
+		}
+		if (!Settings.SWARM_DOWNLOAD) {
+			sources = new ArrayList<>(sources.subList(0, 1));
+		}
+		// the download starts now, or once one of the running downloads ends
+		if (!downloads.enqueue(new Download(this, interactController, selectedFile, size, sources))) {
+			interactController.showErrorDialog("Already downloading: " + selectedFile);
+		}
+	}
 
-		// Send the download request to the server
-		String message = "##DOWNLOAD," + resultMap.get(selectedFile) + "," + selectedFile + ","
-				+ hamachiAddress + "," + downloadPort + "," + messageKey;
-		sendMessage(message);
+	/**
+	 * This method is used to get the controller of the UI
+	 * @return
+	 */
+	public InteractController getInteractController() {
+		return interactController;
+	}
 
+	/**
+	 * This method is used to show a transfer in the interface until it is
+	 * removed
+	 * @param transfer
+	 */
+	public void addProgress(TransferProgress transfer) {
+		progress.add(transfer);
 	}
 
-	
 	/**
-	 * This method is used to download the file
+	 * This method is used to stop showing a transfer
+	 * @param transfer
 	 */
-	private void downloadFile() {
-		// Start a new thread to download the file
-		new Thread(() -> {
-			while (true) {
-				try {
-					// Accept the connection from the downloader
-					Socket downloadSocket = serverSocket.accept();
-					System.out.println("Accepted connection from " + downloadSocket.getRemoteSocketAddress());
-
-					try (DataInputStream input = new DataInputStream(downloadSocket.getInputStream())) {
-						// Read the file name and size
-						// String fileName = input.readUTF();
-						long fileSize = input.readLong();
-						String messageKeyReceived = input.readUTF();
-
-						System.out.println("Received key: " + messageKeyReceived);
-
-						// Check if the message key is correct
-						if (messageKey.equals(messageKeyReceived)) {
-							String receiving = "Downloading file: " + downloadingFile + " with " + fileSize + " bytes";
-							System.out.println(receiving);
-							try {
-								// Create a file output stream
-								FileOutputStream fileOutputStream = new FileOutputStream(
-										"localFiles/" + downloadingFile);
-								// Receive the file contents in chunks
-								byte[] buff = new byte[4096];
-								int amountRead;
-								long totalRead = 0;
-
-								// Update the progress bar
-								while ((amountRead = input.read(buff)) > 0) {
-
-									fileOutputStream.write(buff, 0, amountRead);
-									totalRead += amountRead;
-									interactController.updateProgressBarDownload(totalRead, fileSize);
-									if (totalRead == fileSize) {
-										break;
-									}
-									while (pauseDownload) {
-										Thread.sleep(50);
-									}
-								}
-								// Close the file output stream
-								fileOutputStream.close();
-								// client.pasueButton.setDisable(true);
-								interactController.updateProgressBarDownload(fileSize, fileSize);
-								System.out.println("File downloaded: " + downloadingFile);
-							} catch (Exception e) {
-								System.out.println("Failed to download file contents: ");
-								e.printStackTrace();
-							}
-							// Enable the download button
-							interactController.buttonDownload.setDisable(false);
-							interactController.showDialog("Download Complete: " + downloadingFile);
+	public void removeProgress(TransferProgress transfer) {
+		if (progress.remove(transfer)) {
+			long rate = transfer.averageRate(System.nanoTime());
+			if (rate >= 0) {
+				throughput.record(rate / 1024);
+			}
+		}
+	}
 
-						} else {
-							System.out.println(
-									"Incorrect message-key!!: " + messageKeyReceived + " , expected: " + messageKey);
-						}
+	/**
+	 * This method is used to get the transfers shown in the interface
+	 * @return
+	 */
+	public List<TransferProgress> getProgress() {
+		return progress;
+	}
 
-					}
+	/**
+	 * This method is used to pause or resume all downloads
+	 * @param paused
+	 */
+	public void setPaused(boolean paused) {
+		synchronized (pauseLock) {
+			pauseDownload = paused;
+			pauseLock.notifyAll();
+		}
+	}
 
-				} catch (SocketException e) {
-					System.out.println("Error Downloading File.");
-				} catch (IOException e) {
-					System.out.println("Error occured while downloading File.");
-				}
+	/**
+	 * This method is used to wait while downloads are paused
+	 * @throws InterruptedException
+	 */
+	public void awaitResume() throws InterruptedException {
+		synchronized (pauseLock) {
+			while (pauseDownload) {
+				pauseLock.wait();
 			}
-		}).start();
+		}
+	}
 
+	/**
+	 * This method is used to get the address peers can reach this client on
+	 * @return
+	 */
+	public String getLocalAddress() {
+		return socket.getLocalAddress().getHostAddress();
 	}
 
 	/**
-	 * This method is used to upload the file
+	 * This method is used to upload the file, now if an upload slot is free
+	 * and otherwise once the scheduler picks it. Only shared files are sent,
+	 * and only ranges that lie within the file.
+	 * @param downloader
+	 * @param sharer true if the downloader shares files too
+	 * @param codecs the DataChannel.CODEC_ bits the downloader offered
 	 * @param fileName
 	 * @param downloaderAddress
 	 * @param downloaderPort
 	 * @param messageKey
+	 * @param offset the first byte to send
+	 * @param length the number of bytes to send, or -1 for the rest of the file
 	 */
-	public void uploadFile(String fileName, String downloaderAddress, int downloaderPort, String messageKey) {
+	public void uploadFile(String downloader, boolean sharer, int codecs, String fileName,
+			String downloaderAddress, int downloaderPort, String messageKey, long offset, long length) {
 
-		new Thread(() -> {
-			try {
-				// Open a socket connection to the receiver
-				Socket uploadSocket = new Socket(downloaderAddress, downloaderPort);
-				DataOutputStream output = new DataOutputStream(uploadSocket.getOutputStream());
-
-				File file = new File("localFiles/" + fileName);
-
-				// Send file size and message-key
-				output.writeLong(file.length());
-				output.writeUTF(messageKey);
-
-				// Send file contents
-				FileInputStream fileInputStream = new FileInputStream(file);
-				byte[] buff = new byte[4096];
-				int readAmount;
-				long totalRead = 0;
-				long fileLength = file.length();
-
-				// Update the progress bar
-				while ((readAmount = fileInputStream.read(buff)) > 0) {
-
-					output.write(buff, 0, readAmount);
-					totalRead += readAmount;
-					// Update the progress of the file
-					interactController.updateProgressBarUpload(totalRead, fileLength);
-				}
+		if (fileIndex.get(fileName) == null) {
+			System.out.println("Refused to upload " + fileName + " to " + downloader + ", it is not shared");
+			return;
+		}
+		long fileLength = new File("localFiles", fileName).length();
+		if (offset < 0 || offset > fileLength || length < -1) {
+			System.out.println("Refused to upload bytes " + offset + " to " + length + " of " + fileName + " to "
+					+ downloader + ", they are not in the file");
+			return;
+		}
+		long count = length < 0 ? fileLength - offset : Math.min(length, fileLength - offset);
+		TransferProgress progress = new TransferProgress(true, fileName + " to " + downloader, count);
+		progress.setStatus("waiting for a slot");
+		addProgress(progress);
+		uploads.submit(new UploadScheduler.Upload(downloader, fileName, downloaderAddress, downloaderPort, messageKey,
+				offset, count, sharer, codecs, progress));
+	}
 
-				// Close the input and output streams and the socket
-				fileInputStream.close();
-				output.close();
-				uploadSocket.close();
+	/**
+	 * This method is used to send what is left of an upload, once it has a
+	 * slot
+	 * @param upload
+	 * @return true if the upload was paused and is to be continued later
+	 */
+	boolean sendUpload(UploadScheduler.Upload upload) {
+		TransferProgress progress = upload.progress;
+		if (progress.isPaused()) {
+			// paused while it waited, it keeps its place without connecting
+			return true;
+		}
+		progress.setStatus(null);
+		boolean paused = false;
+		// Open a socket channel to the receiver and a file channel to the file
+		try (SocketChannel uploadChannel = SocketChannel.open();
+				FileChannel fileChannel = FileChannel.open(Paths.get("localFiles", upload.fileName),
+						StandardOpenOption.READ)) {
+			transfers.track(uploadChannel);
+			ChunkSizer sizer = ChunkSizer.connect(uploadChannel, new InetSocketAddress(upload.address, upload.port));
+
+			// Send file size, message-key and the range being sent
+			ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+			DataOutputStream header = new DataOutputStream(headerBytes);
+			header.writeLong(fileChannel.size());
+			header.writeUTF(upload.key);
+			header.writeLong(upload.getOffset());
+			header.writeLong(upload.getLength());
+			writeFully(uploadChannel, ByteBuffer.wrap(headerBytes.toByteArray()));
+
+			// a downloader with an older copy describes it before anything is sent
+			boolean compress = Settings.COMPRESSION && (upload.codecs & DataChannel.CODEC_DEFLATE) != 0;
+			Delta.Signature signature = null;
+			if ((upload.codecs & DataChannel.CODEC_DELTA) != 0) {
+				signature = Delta.Signature.read(uploadChannel);
+			}
 
-				// Remove the file from the list view
-				// Update status label
+			// Send file contents
+			long stopped;
+			if (signature != null && Settings.DELTA_TRANSFER) {
+				stopped = sendDelta(fileChannel, uploadChannel, upload.getOffset(), upload.getLength(), progress,
+						signature, compress);
+			} else {
+				stopped = sendFileContents(fileChannel, uploadChannel, upload.getOffset(), upload.getLength(),
+						progress, sizer, compress);
+			}
+			if (stopped < upload.getOffset() + upload.getLength() && progress.isPaused()) {
+				upload.pausedAt(stopped);
+				paused = true;
+				System.out.println("Paused upload of " + upload.fileName + " at byte " + stopped);
+			} else if (stopped < upload.getOffset() + upload.getLength()) {
+				System.out.println("Downloader stopped the upload of " + upload.fileName);
+			} else {
 				System.out.println("File uploaded successfully.\n");
+			}
 
-			} catch (Exception e) {
-				e.printStackTrace();
-				System.out.println("Error while uploading.\n");
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.out.println("Error while uploading.\n");
+		} finally {
+			if (!paused) {
+				removeProgress(progress);
+			}
+		}
+		return paused;
+	}
+
+	/**
+	 * This method is used to send a range of the file to the downloader, in
+	 * chunks framed as described in DataChannel and sized by the ChunkSizer.
+	 * The bytes are handed to the kernel with transferTo when possible,
+	 * otherwise they are copied through a pooled direct buffer. When the
+	 * downloader can decode it, smaller chunks are read into memory and sent
+	 * compressed where that pays off. Every chunk waits for its share of the
+	 * upload bandwidth first. Between chunks the upload stops if it was
+	 * paused, or if the downloader asked it to.
+	 * @param fileChannel
+	 * @param uploadChannel
+	 * @param position
+	 * @param count
+	 * @param progress counts the bytes sent
+	 * @param sizer
+	 * @param compress true if chunks may be sent compressed
+	 * @return the first byte not sent, the end of the range if all was sent
+	 * @throws IOException
+	 */
+	static long sendFileContents(FileChannel fileChannel, SocketChannel uploadChannel, long position, long count,
+			TransferProgress progress, ChunkSizer sizer, boolean compress) throws IOException {
+		long end = position + count;
+		// compressed chunks pass through memory, so the kernel cannot move them
+		boolean zeroCopy = Settings.ZERO_COPY_UPLOAD && !compress;
+		ChunkCompressor compressor = compress ? new ChunkCompressor() : null;
+		Bandwidth.Throttle throttle = Bandwidth.upload();
+		ByteBuffer buffer = null;
+		ByteBuffer packed = null;
+		try {
+			while (position < end) {
+				if (DataChannel.stopRequested(uploadChannel)) {
+					return position;
+				}
+				if (progress.isPaused()) {
+					// tell the downloader to keep the range, it is continued on a new connection
+					DataChannel.writeChunkHeader(uploadChannel, DataChannel.PAUSED, 0);
+					return position;
+				}
+				if (compressor != null) {
+					if (buffer == null) {
+						buffer = BufferPool.acquire();
+						packed = BufferPool.acquire();
+					}
+					long chunkStart = System.nanoTime();
+					int step = (int) Math.min(Math.min(buffer.capacity(), DataChannel.DEFLATE_CHUNK), end - position);
+					readChunk(fileChannel, buffer, position, step);
+					int sent = sendChunk(uploadChannel, buffer, packed, compressor, throttle);
+					long nanos = System.nanoTime() - chunkStart;
+					compressor.sent(step, nanos);
+					sizer.sent(uploadChannel, sent, nanos);
+					position += step;
+					progress.moved(step);
+					progress.setDone(progress.getTotal() - (end - position));
+					continue;
+				}
+				// wait for the bandwidth of the next chunk
+				long step = throttle.step(Math.min(sizer.next(), end - position));
+				throttle.acquire(step);
+				long chunkStart = System.nanoTime();
+				DataChannel.writeChunkHeader(uploadChannel, DataChannel.DATA, (int) step);
+				long chunkEnd = position + step;
+				while (position < chunkEnd) {
+					long sent;
+					if (zeroCopy) {
+						// let the kernel move the bytes from the file to the socket
+						sent = fileChannel.transferTo(position, chunkEnd - position, uploadChannel);
+						if (sent <= 0) {
+							// transferTo made no progress, fall back to copying
+							zeroCopy = false;
+							continue;
+						}
+					} else {
+						if (buffer == null) {
+							buffer = BufferPool.acquire();
+						}
+						buffer.clear();
+						buffer.limit((int) Math.min(buffer.capacity(), chunkEnd - position));
+						int read = fileChannel.read(buffer, position);
+						if (read < 0) {
+							throw new IOException("File ended before the upload completed");
+						}
+						buffer.flip();
+						writeFully(uploadChannel, buffer);
+						sent = read;
+					}
+					position += sent;
+					// publish the progress, the interface samples it on its own timer
+					progress.moved(sent);
+					progress.setDone(progress.getTotal() - (end - position));
+				}
+				sizer.sent(uploadChannel, step, System.nanoTime() - chunkStart);
 			}
-		}).start();
+			return position;
+		} finally {
+			BufferPool.release(buffer);
+			BufferPool.release(packed);
+			if (compressor != null) {
+				compressor.close();
+			}
+		}
+	}
 
+	/**
+	 * This method is used to send a range as the difference to the
+	 * downloader's older copy of the file. Blocks the downloader already has
+	 * are sent as instructions to copy them and the rest as literal chunks,
+	 * compressed if allowed. Between chunks the upload stops if it was
+	 * paused, or if the downloader asked it to.
+	 * @param fileChannel
+	 * @param uploadChannel
+	 * @param position
+	 * @param count
+	 * @param progress counts the bytes covered, copied or sent
+	 * @param signature the blocks of the downloader's copy
+	 * @param compress true if chunks may be sent compressed
+	 * @return the first byte not covered, the end of the range if all was
+	 * @throws IOException
+	 */
+	private long sendDelta(FileChannel fileChannel, SocketChannel uploadChannel, long position, long count,
+			TransferProgress progress, Delta.Signature signature, boolean compress) throws IOException {
+		long end = position + count;
+		long copied = 0;
+		Delta.Encoder encoder = new Delta.Encoder(fileChannel, signature, position, end);
+		ChunkCompressor compressor = compress ? new ChunkCompressor() : null;
+		Bandwidth.Throttle throttle = Bandwidth.upload();
+		ByteBuffer packed = compress ? BufferPool.acquire() : null;
+		try {
+			while (encoder.next()) {
+				if (DataChannel.stopRequested(uploadChannel)) {
+					return position;
+				}
+				if (progress.isPaused()) {
+					DataChannel.writeChunkHeader(uploadChannel, DataChannel.PAUSED, 0);
+					return position;
+				}
+				int length = encoder.getLength();
+				if (encoder.getSource() >= 0) {
+					// the downloader has these bytes already
+					DataChannel.writeCopy(uploadChannel, encoder.getSource(), length);
+					copied += length;
+				} else if (compressor != null) {
+					long chunkStart = System.nanoTime();
+					sendChunk(uploadChannel, encoder.getLiteral(), packed, compressor, throttle);
+					compressor.sent(length, System.nanoTime() - chunkStart);
+				} else {
+					throttle.acquire(length);
+					DataChannel.writeChunkHeader(uploadChannel, DataChannel.DATA, length);
+					writeFully(uploadChannel, encoder.getLiteral());
+				}
+				position += length;
+				progress.moved(length);
+				progress.setDone(progress.getTotal() - (end - position));
+			}
+			System.out.println("Sent " + (count - copied) + " of " + count + " bytes, the downloader had the rest");
+			return position;
+		} finally {
+			BufferPool.release(packed);
+			if (compressor != null) {
+				compressor.close();
+			}
+		}
+	}
+
+	/**
+	 * This method is used to read part of the file into a buffer
+	 * @param fileChannel
+	 * @param buffer left in read mode
+	 * @param position
+	 * @param length
+	 * @throws IOException
+	 */
+	private static void readChunk(FileChannel fileChannel, ByteBuffer buffer, long position, int length)
+			throws IOException {
+		buffer.clear();
+		buffer.limit(length);
+		while (buffer.hasRemaining()) {
+			if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("File ended before the upload completed");
+			}
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * This method is used to send one chunk, compressed if the compressor
+	 * finds it worth it and raw otherwise
+	 * @param channel
+	 * @param raw the file bytes in read mode
+	 * @param packed a buffer for the compressed bytes
+	 * @param compressor
+	 * @param throttle
+	 * @return the bytes sent after the chunk header
+	 * @throws IOException
+	 */
+	private static int sendChunk(SocketChannel channel, ByteBuffer raw, ByteBuffer packed,
+			ChunkCompressor compressor, Bandwidth.Throttle throttle) throws IOException {
+		int length = raw.remaining();
+		packed.clear();
+		// the file length goes in front of the compressed bytes
+		packed.position(Integer.BYTES);
+		if (compressor.compress(raw, packed) < 0) {
+			throttle.acquire(length);
+			DataChannel.writeChunkHeader(channel, DataChannel.DATA, length);
+			writeFully(channel, raw);
+			return length;
+		}
+		packed.flip();
+		packed.putInt(0, length);
+		int sent = packed.remaining();
+		throttle.acquire(sent);
+		DataChannel.writeChunkHeader(channel, DataChannel.DEFLATE, sent);
+		writeFully(channel, packed);
+		return sent;
+	}
+
+	/**
+	 * This method is used to write the whole buffer to the channel
+	 * @param channel
+	 * @param buffer
+	 * @throws IOException
+	 */
+	private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
 	}
 
 	// === RSA Encryption and Decryption code from here ===
+	// RSA is only used to exchange the session key, see SessionCipher
 
 	/**
 	 * This method is used to generate a key pair
@@ -459,20 +987,6 @@ public class Client {
 		return keyPairGenerator.generateKeyPair();
 	}
 
-	/**
-	 * This method is used to encrypt data with the public key
-	 * @param data
-	 * @return
-	 * @throws Exception
-	 */
-	public byte[] encryptWithPublicKey(byte[] data) throws Exception {
-		// Create a cipher object
-		Cipher cipher = Cipher.getInstance("RSA");
-		// Initialize the cipher object
-		cipher.init(Cipher.ENCRYPT_MODE, serverKey);
-		return cipher.doFinal(data);
-	}
-
 	/**
 	 * This method is used to decrypt data with the private key
 	 * @param encryptedData
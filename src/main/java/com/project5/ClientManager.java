@@ -0,0 +1,439 @@
+package com.project5;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Cipher;
+
+/**
+ * Represents a client manager that handles communication with a client.
+ */
+class ClientManager implements Runnable {
+
+	// runtime metrics of the whole server, see Metrics
+	static final Metrics metrics = new Metrics("Server");
+	private static final LongAdder[] received = metrics.perOpcode("received");
+	private static final LongAdder[] sent = metrics.perOpcode("sent");
+	private static final LongAdder bytesIn = metrics.counter("bytes.in");
+	private static final LongAdder bytesOut = metrics.counter("bytes.out");
+	static final LongAdder bytesRelayed = metrics.counter("bytes.relayed"); // passed on from one client to others
+	static final LongAdder searchTimeouts = metrics.counter("search.timeouts");
+	static final Metrics.Histogram searchFanOut = metrics.histogram("search.fanOut", "us"); // until every peer answered
+	private static final Metrics.Histogram catalogSearch = metrics.histogram("search.catalog", "us");
+	private static final Metrics.Histogram decryptTime = metrics.histogram("crypto.decrypt", "us");
+	private static final Metrics.Histogram encryptTime = metrics.histogram("crypto.encrypt", "us");
+
+	static {
+		metrics.gauge("peers.connected", ClientRegistry::size);
+	}
+
+	private volatile PublicKey clientKey;
+	private volatile SessionCipher sessionCipher; // symmetric cipher for all traffic after the key exchange
+	private Socket clientSocket; // the current client's socket, in thread-per-client mode
+	private volatile EventLoopServer.Connection connection; // the client's connection, in event loop mode
+	private volatile DataInputStream dataInputStream;
+	private volatile DataOutputStream dataOutputStream;
+	private String username; // a username
+	private volatile boolean loggedIn = false; // has the client picked a unique username
+	private volatile boolean closed = false;
+	private final ConcurrentHashMap<Integer, PendingSearch> searches = new ConcurrentHashMap<>(); // this client's searches, by query id
+
+	/**
+	 * Represents a client manager that handles communication with a client on
+	 * its own thread.
+	 * 
+	 * @param clientSocket The socket associated with the client.
+	 */
+	public ClientManager(Socket clientSocket) {
+		try {
+			this.clientSocket = clientSocket;
+			dataInputStream = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+			dataOutputStream = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+		} catch (Exception e) {
+			System.out.println("Error initialising client");
+		}
+	}
+
+	/**
+	 * Represents a client manager that handles communication with a client
+	 * through a selector event loop.
+	 * 
+	 * @param connection The non-blocking connection of the client.
+	 */
+	public ClientManager(EventLoopServer.Connection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Run method for the client manager
+	 */
+	@Override
+	public void run() {
+		// Listen for incoming frames
+		try {
+			while (!closed && !clientSocket.isClosed()) {
+				handleFrame(Frames.read(dataInputStream));
+			}
+		} catch (Exception e) {
+			closeAllStreams();
+		}
+	}
+
+	/**
+	 * Handles one frame from the client. The first frame is the protocol
+	 * version and the client's public key, the next ones are the username attempts and every frame after
+	 * that is a message.
+	 * 
+	 * @param frame The frame payload
+	 * @throws Exception
+	 */
+	public void handleFrame(byte[] frame) throws Exception {
+		if (sessionCipher == null) {
+			clientKey = Frames.readVersionedKey(frame);
+			System.out.println("Received Public Key");
+
+			// generate the session key and send it wrapped with the client's public key
+			byte[] sessionKey = SessionCipher.generateKey();
+			sessionCipher = new SessionCipher(sessionKey, true);
+			sendFrame(encryptWithPublicKey(sessionKey));
+			System.out.println("Sent Session Key");
+
+			System.out.println("A new client is requesting to connect!");
+			return;
+		}
+
+		bytesIn.add(frame.length);
+		long start = System.nanoTime();
+		byte[] plain = sessionCipher.decrypt(frame);
+		decryptTime.recordSince(start);
+		Message message = Message.parse(plain);
+		Metrics.count(received, message.opcode());
+		if (!loggedIn) {
+			if (message.opcode() != Protocol.LOGIN) {
+				return; // nothing else is allowed before a username is claimed
+			}
+			// ensures client connecting has a unique username, claimed atomically
+			String name = message.getString();
+			if (!ClientRegistry.claim(name, this)) {
+				sendMessage(Message.of(Protocol.LOGIN_TAKEN)); // communicates that username taken
+			} else {
+				username = name;
+				loggedIn = true;
+				sendMessage(Message.of(Protocol.LOGIN_OK).putByte(Settings.SERVER_CATALOG ? 1 : 0));
+				System.out.println(username + " connected successfully"); // communicates that username is OK
+			}
+			return;
+		}
+
+		handleMessage(message);
+	}
+
+	/**
+	 * Handles a message from a logged in client
+	 * 
+	 * @param message The message to handle
+	 * @throws IOException
+	 */
+	private void handleMessage(Message message) throws IOException {
+		switch (message.opcode()) {
+		case Protocol.DISCONNECT:
+			closeAllStreams();
+			break;
+		case Protocol.SEARCH:
+			// Handle search requests
+			sendSearch(message);
+			break;
+		case Protocol.RESULT:
+			// Handle search results
+			handleSearchResults(message);
+			break;
+		case Protocol.DOWNLOAD:
+			// Handle download requests
+			handleDownloadRequest(message);
+			break;
+		case Protocol.SEARCH_DONE:
+			// Handle the end of a client's search results
+			handleSearchDone(message);
+			break;
+		case Protocol.HASH_REQUEST:
+		case Protocol.HASH_LIST:
+		case Protocol.UPLOAD_QUEUED:
+			// Handle piece hashes and upload queue places passed between two peers
+			relayToPeer(message);
+			break;
+		case Protocol.STATS:
+			// Handle an operator asking where the time goes
+			sendMessage(Message.of(Protocol.STATS).putString(metrics.snapshot()));
+			break;
+		case Protocol.CATALOG_ADD:
+			// Handle files the client started sharing
+			while (Settings.SERVER_CATALOG && message.hasRemaining()) {
+				long size = message.getLong();
+				Catalog.add(username, message.getString(), size);
+			}
+			break;
+		case Protocol.CATALOG_REMOVE:
+			// Handle files the client stopped sharing
+			while (Settings.SERVER_CATALOG && message.hasRemaining()) {
+				Catalog.remove(username, message.getString());
+			}
+			break;
+		default:
+			System.out.println(username + " sent unknown message " + message.opcode());
+		}
+	}
+
+	/**
+	 * Sends a search request to all clients and tracks their answers until
+	 * the deadline
+	 * 
+	 * @param message The message to send
+	 * @throws IOException
+	 */
+	private void sendSearch(Message message) throws IOException {
+		// Get the query id, the deadline and the search text
+		int queryId = message.getInt();
+		long deadline = Math.min(message.getLong(), Settings.SEARCH_TIMEOUT);
+		String searchText = message.getString();
+		System.out.println(username + " is is searching: " + searchText);
+		// Results of older searches are of no use anymore
+		for (PendingSearch old : searches.values()) {
+			old.cancel();
+		}
+		searches.clear();
+		if (Settings.SERVER_CATALOG) {
+			long start = System.nanoTime();
+			answerSearch(queryId, searchText);
+			catalogSearch.recordSince(start);
+			sendMessage(Message.of(Protocol.SEARCH_DONE).putInt(queryId).putInt(0).putInt(0).putByte(0));
+			return;
+		}
+		HashMap<String, ClientManager> peers = new HashMap<>();
+		for (ClientManager client_ : ClientRegistry.all()) {
+			// Ensure the client is not the current client
+			if (client_ != this) {
+				peers.put(client_.username, client_);
+			}
+		}
+		// Track the search before asking, so no early answer is dropped
+		PendingSearch pending = new PendingSearch(this, queryId, peers.keySet());
+		searches.put(queryId, pending);
+		Message search = Message.of(Protocol.SEARCH).putString(username).putInt(queryId).putString(searchText);
+		// Send the search request to all clients
+		for (ClientManager client_ : peers.values()) {
+			client_.sendMessage(search);
+			bytesRelayed.add(search.size());
+		}
+		// Clients that left while the search was sent will never answer
+		for (String peer : peers.keySet()) {
+			if (ClientRegistry.find(peer) != peers.get(peer)) {
+				pending.answered(peer);
+			}
+		}
+		pending.start(deadline);
+	}
+
+	/**
+	 * Answers a search from the catalog, one batch of results per client that
+	 * has matching files
+	 * 
+	 * @param queryId    The searcher's id for the query
+	 * @param searchText The text to search for
+	 */
+	private void answerSearch(int queryId, String searchText) {
+		HashMap<String, ResultBatcher> results = new HashMap<>();
+		for (Catalog.Entry file : Catalog.search(searchText)) {
+			// Skip the searcher's own files
+			if (file.owner.equals(username)) {
+				continue;
+			}
+			ResultBatcher batches = results.get(file.owner);
+			if (batches == null) {
+				batches = new ResultBatcher(this::sendMessage,
+						Message.of(Protocol.RESULT).putString(file.owner).putInt(queryId));
+				results.put(file.owner, batches);
+			}
+			batches.add(file.name, file.size);
+		}
+		for (ResultBatcher batches : results.values()) {
+			batches.flush();
+		}
+	}
+
+	/**
+	 * Handles search results
+	 * 
+	 * @param message The message to handle
+	 * @throws IOException
+	 */
+	private void handleSearchResults(Message message) throws IOException {
+		// The searcher and query id come first, the results follow
+		String searcher = message.getString();
+		int queryId = message.getInt();
+		ClientManager client_ = ClientRegistry.find(searcher);
+		// Relay the whole batch with this client as the uploader, unless the searcher has left
+		if (client_ != null) {
+			PendingSearch pending = client_.searches.get(queryId);
+			if (pending != null)
+				pending.relay(username, Message.of(Protocol.RESULT).putString(username).putInt(queryId).putRest(message));
+		}
+	}
+
+	/**
+	 * Handles a client that sent all its results for a search
+	 * 
+	 * @param message The message to handle
+	 * @throws IOException
+	 */
+	private void handleSearchDone(Message message) throws IOException {
+		String searcher = message.getString();
+		int queryId = message.getInt();
+		ClientManager client_ = ClientRegistry.find(searcher);
+		if (client_ != null) {
+			PendingSearch pending = client_.searches.get(queryId);
+			if (pending != null)
+				pending.answered(username);
+		}
+	}
+
+	/**
+	 * Forgets a search that has ended
+	 * 
+	 * @param pending The search that ended
+	 */
+	void searchFinished(PendingSearch pending) {
+		searches.remove(pending.queryId(), pending);
+	}
+
+	/**
+	 * Handles a download request
+	 * 
+	 * @param message The message to handle
+	 * @throws IOException
+	 */
+	private void handleDownloadRequest(Message message) throws IOException {
+		// The uploader comes first, the file and where to send it follow
+		String uploader = message.getString();
+		ClientManager client_ = ClientRegistry.find(uploader);
+		// Send the download request to the uploader, naming the downloader
+		if (client_ != null) {
+			Message request = Message.of(Protocol.DOWNLOAD).putString(username).putRest(message);
+			System.out.println(username + " requested to download " + message.getString());
+			client_.sendMessage(request);
+			bytesRelayed.add(request.size());
+		}
+	}
+
+	/**
+	 * Relays a message to the client named in its first field, with that
+	 * field replaced by this client's name
+	 * 
+	 * @param message The message to relay
+	 * @throws IOException
+	 */
+	private void relayToPeer(Message message) throws IOException {
+		ClientManager client_ = ClientRegistry.find(message.getString());
+		if (client_ != null) {
+			Message relayed = Message.of(message.opcode()).putString(username).putRest(message);
+			client_.sendMessage(relayed);
+			bytesRelayed.add(relayed.size());
+		}
+	}
+
+	/**
+	 * Sends a message to the client
+	 * 
+	 * @param message The message to send
+	 */
+	public void sendMessage(Message message) {
+		// Send the message
+		try {
+			// Encrypt the message with the session key and send it before any later nonce
+			long start = System.nanoTime();
+			sessionCipher.encryptTo(message.toBytes(), sealed -> {
+				encryptTime.recordSince(start); // includes waiting for other senders
+				bytesOut.add(sealed.length);
+				sendFrame(sealed);
+			});
+			Metrics.count(sent, message.opcode());
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sends a frame to the client, over the event loop when there is one
+	 * 
+	 * @param payload The frame payload
+	 * @throws IOException
+	 */
+	private void sendFrame(byte[] payload) throws IOException {
+		if (connection != null) {
+			connection.send(payload);
+		} else {
+			Frames.write(dataOutputStream, payload);
+		}
+	}
+
+	/**
+	 * Closes all streams
+	 */
+	public void closeAllStreams() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		// Close all streams
+		System.out.println(username + " disconnected");
+		// Remove the client and release its username
+		for (PendingSearch pending : searches.values()) {
+			pending.cancel();
+		}
+		if (loggedIn) {
+			// Forget the shared files before the name can be claimed again
+			Catalog.removeAll(username);
+			ClientRegistry.release(username, this);
+			// Searches waiting for this client end without it instead of timing out
+			for (ClientManager client_ : ClientRegistry.all()) {
+				for (PendingSearch pending : client_.searches.values()) {
+					pending.answered(username);
+				}
+			}
+		}
+		try {
+			if (connection != null)
+				connection.close();
+			if (dataInputStream != null)
+				dataInputStream.close();
+			if (dataOutputStream != null)
+				dataOutputStream.close();
+			if (clientSocket != null)
+				clientSocket.close();
+		} catch (IOException e) {
+
+		}
+	}
+
+	/**
+	 * Encrypts data with the public key
+	 * 
+	 * @param data The data to encrypt
+	 * @return The encrypted data
+	 * @throws Exception
+	 */
+	public byte[] encryptWithPublicKey(byte[] data) throws Exception {
+		// Encrypt the data
+		Cipher cipher = Cipher.getInstance("RSA");
+		// Initialize the cipher
+		cipher.init(Cipher.ENCRYPT_MODE, clientKey);
+		return cipher.doFinal(data);
+	}
+}
@@ -0,0 +1,65 @@
+package com.project5;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the logged in clients of the server, keyed by username. Every method
+ * is safe to call from any session thread or selector thread.
+ */
+class ClientRegistry {
+
+	private static final ConcurrentHashMap<String, ClientManager> clients = new ConcurrentHashMap<>();
+
+	/**
+	 * Claims a username for a client. The check and the insert are one atomic
+	 * step, so two clients can never log in with the same name.
+	 * 
+	 * @param username The username to claim
+	 * @param client   The client claiming it
+	 * @return true if the username was free
+	 */
+	static boolean claim(String username, ClientManager client) {
+		return clients.putIfAbsent(username, client) == null;
+	}
+
+	/**
+	 * Releases the username of a client that disconnected
+	 * 
+	 * @param username The username to release
+	 * @param client   The client that holds it
+	 */
+	static void release(String username, ClientManager client) {
+		clients.remove(username, client);
+	}
+
+	/**
+	 * Finds a client by username
+	 * 
+	 * @param username The username to search for
+	 * @return The client manager, or null if nobody has that name
+	 */
+	static ClientManager find(String username) {
+		return clients.get(username);
+	}
+
+	/**
+	 * Gets every logged in client for a broadcast. Iterating the result never
+	 * throws ConcurrentModificationException, clients that join or leave
+	 * during the broadcast may or may not be included.
+	 * 
+	 * @return The client managers
+	 */
+	static Collection<ClientManager> all() {
+		return clients.values();
+	}
+
+	/**
+	 * Gets the number of logged in clients
+	 * 
+	 * @return The number of clients
+	 */
+	static int size() {
+		return clients.size();
+	}
+}
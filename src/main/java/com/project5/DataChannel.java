@@ -0,0 +1,140 @@
+package com.project5;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * This class is used to hold the flow control of the data connections. After
+ * the range header the uploader sends the range as chunks, each with a type
+ * byte and a length in front, so it can say mid-range that it paused. The
+ * downloader may send a single stop byte back at any time, after which the
+ * uploader ends the range at the next chunk. Either way both ends close the
+ * connection and keep nothing while paused, and the range is continued from
+ * the exact byte it stopped at on a new connection. When the downloader
+ * offered Deflate in its request, the uploader may send any chunk compressed.
+ * When it offered a delta, it first sends the signature of its old copy of
+ * the file, described in Delta, and the uploader may tell it to copy parts
+ * of that copy instead of sending them.
+ */
+public class DataChannel {
+
+	// uploader -> downloader: type byte, length int, then length bytes of the file
+	static final byte DATA = 0;
+	// uploader -> downloader: length 0, the uploader paused and reconnects with the same key to continue
+	static final byte PAUSED = 1;
+	// uploader -> downloader: file length int, then Deflate data, length counts both
+	static final byte DEFLATE = 2;
+	// uploader -> downloader: length 12, a long offset in the downloader's old copy and an int count of bytes to copy
+	static final byte COPY = 3;
+	// downloader -> uploader: stop sending, the downloader paused or no longer wants the range
+	static final byte STOP = 1;
+
+	static final int CHUNK_HEADER = 5; // bytes in front of every chunk
+	static final int MAX_KEY_LENGTH = 64; // longest range key accepted, the keys sent are 10 characters
+	static final int DEFLATE_CHUNK = 64 * 1024; // most file bytes in a compressed chunk
+
+	// codecs offered in a download request, as bits
+	static final int CODEC_DEFLATE = 1;
+	static final int CODEC_DELTA = 2; // the downloader sends a signature after the range header
+
+	// milliseconds a stopping downloader waits for the uploader to close
+	private static final int STOP_LINGER = 1000;
+
+	/**
+	 * This method is used to write the header of a chunk
+	 * @param channel
+	 * @param type
+	 * @param length
+	 * @throws IOException
+	 */
+	static void writeChunkHeader(SocketChannel channel, byte type, int length) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER);
+		header.put(type).putInt(length).flip();
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+	}
+
+	/**
+	 * This method is used to tell the downloader to copy part of its old copy
+	 * @param channel
+	 * @param source offset in the old copy
+	 * @param length
+	 * @throws IOException
+	 */
+	static void writeCopy(SocketChannel channel, long source, int length) throws IOException {
+		ByteBuffer chunk = ByteBuffer.allocate(CHUNK_HEADER + Long.BYTES + Integer.BYTES);
+		chunk.put(COPY).putInt(Long.BYTES + Integer.BYTES).putLong(source).putInt(length).flip();
+		while (chunk.hasRemaining()) {
+			channel.write(chunk);
+		}
+	}
+
+	/**
+	 * This method is used to read from the connection until the buffer holds
+	 * at least a number of bytes
+	 * @param channel
+	 * @param in a buffer in read mode, still in read mode afterwards
+	 * @param bytes
+	 * @throws IOException if the connection closes first, or the buffer cannot
+	 *                     hold that many bytes
+	 */
+	static void fill(SocketChannel channel, ByteBuffer in, int bytes) throws IOException {
+		if (in.remaining() >= bytes) {
+			return;
+		}
+		if (bytes > in.capacity()) {
+			// the read would never make progress
+			throw new IOException("Cannot buffer " + bytes + " bytes in " + in.capacity());
+		}
+		in.compact();
+		try {
+			while (in.position() < bytes) {
+				if (channel.read(in) < 0) {
+					throw new EOFException("Peer closed the connection");
+				}
+			}
+		} finally {
+			in.flip();
+		}
+	}
+
+	/**
+	 * This method is used to check, without waiting, if the downloader asked
+	 * the uploader to stop
+	 * @param channel
+	 * @return
+	 * @throws IOException
+	 */
+	static boolean stopRequested(SocketChannel channel) throws IOException {
+		InputStream input = channel.socket().getInputStream();
+		return input.available() > 0 && input.read() == STOP;
+	}
+
+	/**
+	 * This method is used to ask the uploader to stop, and to drop what it
+	 * sent before it saw the request so it can close without an error
+	 * @param socket
+	 */
+	static void stopSender(Socket socket) {
+		try {
+			socket.getOutputStream().write(STOP);
+			socket.getOutputStream().flush();
+			socket.setSoTimeout(STOP_LINGER);
+			InputStream input = socket.getInputStream();
+			byte[] discard = new byte[Settings.BUFFER_SIZE];
+			while (input.read(discard) >= 0) {
+				// the uploader stops at the end of its current chunk
+			}
+		} catch (SocketTimeoutException e) {
+			// the uploader did not close in time, closing the socket is enough
+		} catch (IOException e) {
+			// the connection is already gone
+		}
+	}
+}
@@ -0,0 +1,487 @@
+package com.project5;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * This class is used to send a range as its difference to an older copy of
+ * the file that the downloader already has, the way rsync does. The
+ * downloader cuts its copy into blocks and sends a weak rolling checksum and
+ * a strong hash of each block. The uploader slides a window of one block over
+ * its range a byte at a time, and where the checksum and then the hash match
+ * a block it tells the downloader to copy that block from its own copy. The
+ * bytes in between are sent as literal chunks. A block that matched by
+ * mistake is caught by the piece hashes like any other bad piece.
+ */
+public class Delta {
+
+	static final int MIN_BLOCK = 2 * 1024;
+	static final int MAX_BLOCK = 64 * 1024;
+	static final int STRONG_BYTES = 16; // bytes of the SHA-256 hash kept per block
+	static final long WINDOW_SLACK = 8L * 1024 * 1024; // bytes of the old copy searched beyond a range for moved blocks
+
+	private static final int ENTRY_BYTES = Integer.BYTES + STRONG_BYTES;
+	private static final int MAX_BLOCKS = 1 << 20; // most blocks in one signature
+	private static final int MAX_LITERAL = DataChannel.DEFLATE_CHUNK; // most bytes in one literal chunk
+	private static final int MAX_COPY = 64 * 1024 * 1024; // most bytes in one copy instruction
+
+	/**
+	 * This method is used to pick the block size for an old copy, about the
+	 * square root of its size so the signature and the literal data of a
+	 * small change stay in proportion
+	 * @param size
+	 * @return
+	 */
+	static int blockSize(long size) {
+		long root = (long) Math.sqrt(size) & ~1023L;
+		return (int) Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, root));
+	}
+
+	/**
+	 * This method is used to compute the weak checksum of a block
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	static int checksum(byte[] data, int offset, int length) {
+		int a = 0;
+		int b = 0;
+		for (int i = 0; i < length; i++) {
+			int x = data[offset + i] & 0xff;
+			a += x;
+			b += (length - i) * x;
+		}
+		return (a & 0xffff) | (b << 16);
+	}
+
+	/**
+	 * This class is used to describe the blocks of an old copy
+	 */
+	public static class Signature {
+
+		final int blockSize;
+		final int firstBlock; // block of the old copy the entries start at
+		final int[] weak;
+		final byte[] strong; // STRONG_BYTES per block
+
+		/**
+		 * This is the constructor for the Signature class
+		 * @param blockSize
+		 * @param firstBlock
+		 * @param weak
+		 * @param strong
+		 */
+		private Signature(int blockSize, int firstBlock, int[] weak, byte[] strong) {
+			this.blockSize = blockSize;
+			this.firstBlock = firstBlock;
+			this.weak = weak;
+			this.strong = strong;
+		}
+
+		/**
+		 * This method is used to describe every whole block of an old copy
+		 * @param file
+		 * @return the signature, or null if the copy is too small or too large
+		 * @throws IOException
+		 */
+		public static Signature compute(FileChannel file) throws IOException {
+			long size = file.size();
+			int blockSize = blockSize(size);
+			long blocks = size / blockSize;
+			if (blocks == 0 || blocks > MAX_BLOCKS) {
+				return null;
+			}
+			int count = (int) blocks;
+			int[] weak = new int[count];
+			byte[] strong = new byte[count * STRONG_BYTES];
+			MessageDigest digest = PieceHashes.newDigest();
+			ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+			for (int i = 0; i < count; i++) {
+				buffer.clear();
+				while (buffer.hasRemaining()) {
+					if (file.read(buffer, (long) i * blockSize + buffer.position()) < 0) {
+						throw new IOException("File is shorter than its size");
+					}
+				}
+				weak[i] = checksum(buffer.array(), 0, blockSize);
+				digest.update(buffer.array(), 0, blockSize);
+				System.arraycopy(digest.digest(), 0, strong, i * STRONG_BYTES, STRONG_BYTES);
+			}
+			return new Signature(blockSize, 0, weak, strong);
+		}
+
+		/**
+		 * This method is used to send the blocks that overlap part of the old
+		 * copy
+		 * @param channel
+		 * @param from
+		 * @param to
+		 * @throws IOException
+		 */
+		void write(SocketChannel channel, long from, long to) throws IOException {
+			int first = (int) Math.min(weak.length, Math.max(0, from / blockSize));
+			int last = (int) Math.min(weak.length, Math.max(first, (to + blockSize - 1) / blockSize));
+			ByteBuffer out = ByteBuffer.allocate(3 * Integer.BYTES + (last - first) * ENTRY_BYTES);
+			out.putInt(blockSize).putInt(firstBlock + first).putInt(last - first);
+			for (int i = first; i < last; i++) {
+				out.putInt(weak[i]).put(strong, i * STRONG_BYTES, STRONG_BYTES);
+			}
+			out.flip();
+			while (out.hasRemaining()) {
+				channel.write(out);
+			}
+		}
+
+		/**
+		 * This method is used to read the signature a downloader sent
+		 * @param channel
+		 * @return
+		 * @throws IOException if the signature is malformed
+		 */
+		static Signature read(SocketChannel channel) throws IOException {
+			ByteBuffer in = ByteBuffer.allocate(3 * Integer.BYTES).flip();
+			DataChannel.fill(channel, in, in.capacity());
+			int blockSize = in.getInt();
+			int firstBlock = in.getInt();
+			int count = in.getInt();
+			if (blockSize < MIN_BLOCK || blockSize > MAX_BLOCK || firstBlock < 0 || count < 0 || count > MAX_BLOCKS) {
+				throw new IOException("Bad signature from downloader");
+			}
+			in = ByteBuffer.allocate(count * ENTRY_BYTES).flip();
+			DataChannel.fill(channel, in, in.capacity());
+			int[] weak = new int[count];
+			byte[] strong = new byte[count * STRONG_BYTES];
+			for (int i = 0; i < count; i++) {
+				weak[i] = in.getInt();
+				in.get(strong, i * STRONG_BYTES, STRONG_BYTES);
+			}
+			return new Signature(blockSize, firstBlock, weak, strong);
+		}
+	}
+
+	/**
+	 * This class is used to turn a range of the file into copy instructions
+	 * and literal data, one instruction at a time
+	 */
+	public static class Encoder {
+
+		private final FileChannel file;
+		private final Signature signature;
+		private final int blockSize;
+		private final long end;
+		private final long[] filter; // a bit per mixed weak checksum, turns away most windows at once
+		private final int[] first; // open addressing on the weak checksum, first block with it plus one, 0 if free
+		private final int[] next; // next block with the same weak checksum, -1 after the last
+		private final MessageDigest digest = PieceHashes.newDigest();
+		private final ByteBuffer buffer; // file bytes from bufferStart, in write mode
+		private long bufferStart;
+		private long position; // start of the window
+		private long literalStart; // first byte no instruction covers yet
+		private int a; // the two halves of the window's rolling checksum
+		private int b;
+		private boolean rolling = false; // a and b describe the window
+		private int matched = -1; // block matched at the window, sent after the literal before it
+
+		// the current instruction
+		private long source; // offset in the old copy, -1 for literal data
+		private int length;
+		private ByteBuffer literal;
+
+		/**
+		 * This is the constructor for the Encoder class
+		 * @param file
+		 * @param signature
+		 * @param offset
+		 * @param end
+		 */
+		public Encoder(FileChannel file, Signature signature, long offset, long end) {
+			this.file = file;
+			this.signature = signature;
+			this.blockSize = signature.blockSize;
+			this.end = end;
+			int count = signature.weak.length;
+			this.filter = new long[Integer.highestOneBit(Math.max(2, count)) / 2];
+			this.first = new int[Integer.highestOneBit(Math.max(1, count)) * 4];
+			this.next = new int[count];
+			for (int i = count - 1; i >= 0; i--) {
+				int mixed = mix(signature.weak[i]);
+				filter[(mixed >>> 6) & (filter.length - 1)] |= 1L << mixed;
+				int slot = slot(signature.weak[i]);
+				next[i] = first[slot] - 1;
+				first[slot] = i + 1;
+			}
+			this.buffer = ByteBuffer.allocate(MAX_LITERAL + 2 * blockSize);
+			this.bufferStart = offset;
+			this.position = offset;
+			this.literalStart = offset;
+		}
+
+		/**
+		 * This method is used to find the next instruction
+		 * @return false once the whole range is covered
+		 * @throws IOException
+		 */
+		public boolean next() throws IOException {
+			if (literalStart >= end) {
+				return false;
+			}
+			if (matched >= 0) {
+				// the literal before the block has been sent
+				return copy(matched);
+			}
+			while (position + blockSize <= end) {
+				if (position - literalStart >= MAX_LITERAL) {
+					return literal(position);
+				}
+				load(position + blockSize);
+				byte[] data = buffer.array();
+				int index = (int) (position - bufferStart);
+				if (!rolling) {
+					a = 0;
+					b = 0;
+					for (int i = 0; i < blockSize; i++) {
+						int x = data[index + i] & 0xff;
+						a += x;
+						b += (blockSize - i) * x;
+					}
+					rolling = true;
+				}
+				// slide over the loaded bytes, keeping the literal within one chunk
+				long last = Math.min(bufferStart + buffer.position() - blockSize, literalStart + MAX_LITERAL - 1);
+				int block = scan((int) (last - bufferStart));
+				if (block >= 0) {
+					if (position > literalStart) {
+						// send the bytes before the block first
+						matched = block;
+						return literal(position);
+					}
+					return copy(block);
+				}
+				// step past the last window, reading on if needed
+				if (position + blockSize < end) {
+					load(position + blockSize + 1);
+					index = (int) (position - bufferStart);
+					int out = data[index] & 0xff;
+					int in = data[index + blockSize] & 0xff;
+					a += in - out;
+					b += a - blockSize * out;
+				} else {
+					rolling = false;
+				}
+				position++;
+			}
+			// less than a block is left, it can only be sent as it is
+			long to = Math.min(end, literalStart + MAX_LITERAL);
+			load(to);
+			position = Math.max(position, to);
+			return literal(to);
+		}
+
+		/**
+		 * This method is used to roll the window over the buffer until a block
+		 * matches or the window reaches a place, in local variables since it
+		 * runs for every byte
+		 * @param lastIndex the last window start to test
+		 * @return the matched block, or -1 with the window at the last place
+		 */
+		private int scan(int lastIndex) {
+			byte[] data = buffer.array();
+			int index = (int) (position - bufferStart);
+			int a = this.a;
+			int b = this.b;
+			int block;
+			while (true) {
+				block = match(index, (a & 0xffff) | (b << 16));
+				if (block >= 0 || index == lastIndex) {
+					break;
+				}
+				int out = data[index] & 0xff;
+				int in = data[index + blockSize] & 0xff;
+				a += in - out;
+				b += a - blockSize * out;
+				index++;
+			}
+			this.a = a;
+			this.b = b;
+			position = bufferStart + index;
+			return block;
+		}
+
+		/**
+		 * This method is used to get the offset in the old copy to copy from
+		 * @return the offset, or -1 if the instruction is literal data
+		 */
+		public long getSource() {
+			return source;
+		}
+
+		/**
+		 * This method is used to get the bytes of the range the instruction
+		 * covers
+		 * @return
+		 */
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * This method is used to get the literal data of the instruction, only
+		 * valid until the next instruction is found
+		 * @return the bytes in read mode, or null for a copy
+		 */
+		public ByteBuffer getLiteral() {
+			return literal;
+		}
+
+		/**
+		 * This method is used to make the bytes before a position the next
+		 * instruction
+		 * @param to
+		 * @return true
+		 */
+		private boolean literal(long to) {
+			int from = (int) (literalStart - bufferStart);
+			literal = ByteBuffer.wrap(buffer.array(), from, (int) (to - literalStart));
+			source = -1;
+			length = literal.remaining();
+			literalStart = to;
+			return true;
+		}
+
+		/**
+		 * This method is used to make a matched block the next instruction,
+		 * together with the blocks that follow it in both files
+		 * @param block
+		 * @return true
+		 * @throws IOException
+		 */
+		private boolean copy(int block) throws IOException {
+			matched = -1;
+			rolling = false;
+			source = (long) (signature.firstBlock + block) * blockSize;
+			length = blockSize;
+			position += blockSize;
+			while (length + blockSize <= MAX_COPY && block + 1 < signature.weak.length
+					&& position + blockSize <= end && matches(position, block + 1)) {
+				block++;
+				length += blockSize;
+				position += blockSize;
+			}
+			literal = null;
+			literalStart = position;
+			return true;
+		}
+
+		/**
+		 * This method is used to find a block with the checksum and the hash
+		 * of the window
+		 * @param index of the window in the buffer
+		 * @param checksum
+		 * @return the block, or -1 if none matches
+		 */
+		private int match(int index, int checksum) {
+			int mixed = mix(checksum);
+			if ((filter[(mixed >>> 6) & (filter.length - 1)] & (1L << mixed)) == 0) {
+				return -1;
+			}
+			int block = first[slot(checksum)] - 1;
+			if (block < 0) {
+				return -1;
+			}
+			byte[] hash = hash(index);
+			for (int i = block; i >= 0; i = next[i]) {
+				if (Arrays.equals(hash, 0, STRONG_BYTES, signature.strong, i * STRONG_BYTES,
+						(i + 1) * STRONG_BYTES)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * This method is used to find the slot of a weak checksum, the one
+		 * holding it or the free one it goes in
+		 * @param checksum
+		 * @return
+		 */
+		private int slot(int checksum) {
+			int mask = first.length - 1;
+			int slot = mix(checksum) & mask;
+			while (first[slot] != 0 && signature.weak[first[slot] - 1] != checksum) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		/**
+		 * This method is used to spread the bits of a weak checksum, whose
+		 * halves are sums that change little from one window to the next
+		 * @param checksum
+		 * @return
+		 */
+		private static int mix(int checksum) {
+			int h = checksum * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+
+		/**
+		 * This method is used to check if the bytes at a position are a
+		 * given block
+		 * @param at
+		 * @param block
+		 * @return
+		 * @throws IOException
+		 */
+		private boolean matches(long at, int block) throws IOException {
+			literalStart = at;
+			load(at + blockSize);
+			int index = (int) (at - bufferStart);
+			return checksum(buffer.array(), index, blockSize) == signature.weak[block]
+					&& Arrays.equals(hash(index), 0, STRONG_BYTES, signature.strong, block * STRONG_BYTES,
+							(block + 1) * STRONG_BYTES);
+		}
+
+		/**
+		 * This method is used to hash the block at a place in the buffer
+		 * @param index
+		 * @return
+		 */
+		private byte[] hash(int index) {
+			digest.update(buffer.array(), index, blockSize);
+			return digest.digest();
+		}
+
+		/**
+		 * This method is used to read the file until the buffer holds every
+		 * byte before a position, dropping the bytes already covered
+		 * @param upTo
+		 * @throws IOException
+		 */
+		private void load(long upTo) throws IOException {
+			if (upTo <= bufferStart + buffer.position()) {
+				return;
+			}
+			int covered = (int) (literalStart - bufferStart);
+			if (covered > 0) {
+				buffer.flip();
+				buffer.position(covered);
+				buffer.compact();
+				bufferStart = literalStart;
+			}
+			while (bufferStart + buffer.position() < upTo) {
+				long loaded = bufferStart + buffer.position();
+				buffer.limit(buffer.position() + (int) Math.min(buffer.remaining(), end - loaded));
+				int read = file.read(buffer, loaded);
+				buffer.limit(buffer.capacity());
+				if (read < 0) {
+					throw new IOException("File ended before the upload completed");
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,919 @@
+package com.project5;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * This class is used to download a file from one or more peers. The file is
+ * split into pieces that are requested as byte ranges. With several peers each
+ * peer is asked for pieces rarest-first and a piece whose peer stops sending is
+ * given to another peer. With one peer the whole missing range is requested at
+ * once. Every piece is checked against the hash the peers sent for it and
+ * only a piece that does not match is fetched again. Finished pieces are
+ * recorded in a TransferState so that a download that is dropped or killed
+ * resumes where it stopped. A download that is paused, or whose peer pauses,
+ * continues from the exact byte it stopped at. The file is written under a
+ * hidden name, at its full size from the start, and renamed once every piece
+ * is verified so other peers never find it half written. An older copy of the
+ * file under the real name is offered to the peers as a basis, so they only
+ * send what changed.
+ */
+public class Download {
+
+	private final Client client;
+	private final InteractController interactController;
+	private final String fileName;
+	private final long fileSize;
+	private final List<String> peers;
+	private final int pieceCount;
+	private final TransferState state;
+	private final PiecePicker picker;
+	private final ConcurrentHashMap<String, RangeRequest> pending = new ConcurrentHashMap<>(); // message key -> request
+	private final AtomicLong received = new AtomicLong(); // bytes of completed pieces
+	private final ConcurrentHashMap<Integer, Long> partial = new ConcurrentHashMap<>(); // piece -> bytes written from its start
+	private final AtomicInteger activeWorkers = new AtomicInteger();
+	private final TaskGroup tasks; // the request workers of this download
+	private final TransferProgress progress; // sampled by the interface
+	private volatile FileChannel fileChannel;
+	private volatile boolean finished = false;
+	private volatile PieceHashes hashes; // expected hash of every piece, null if no peer sent them
+	private volatile Delta.Signature basis; // blocks of the old copy, null when it is not used
+	private FileChannel basisChannel; // the old copy, read while the download runs
+	private int hashAnswers = 0; // peers that answered the hash request
+
+	/**
+	 * This is the constructor for the Download class
+	 * @param client
+	 * @param interactController
+	 * @param fileName
+	 * @param fileSize
+	 * @param peers the peers that returned this file with this size
+	 */
+	public Download(Client client, InteractController interactController, String fileName, long fileSize,
+			List<String> peers) {
+		this.client = client;
+		this.interactController = interactController;
+		this.fileName = fileName;
+		this.fileSize = fileSize;
+		this.peers = peers;
+		this.pieceCount = (int) Math.max(1, (fileSize + Settings.PIECE_SIZE - 1) / Settings.PIECE_SIZE);
+		this.state = TransferState.load(fileName, fileSize, Settings.PIECE_SIZE);
+		this.picker = new PiecePicker(pieceCount, state.getDone());
+		this.tasks = new TaskGroup("download-" + fileName, 0);
+		this.progress = new TransferProgress(false, fileName, fileSize);
+		progress.setStatus("queued");
+	}
+
+	/**
+	 * This method is used to get the name of the file being downloaded
+	 * @return
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * This method is used to get the progress shown for the download
+	 * @return
+	 */
+	public TransferProgress getProgress() {
+		return progress;
+	}
+
+	/**
+	 * This method is used to start the download
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		openPart();
+		BitSet done = state.getDone();
+
+		System.out.println("Downloading " + fileName + " (" + pieceCount + " pieces, " + done.cardinality()
+				+ " already on disk) from " + peers.size() + " peers");
+		progress.setStatus("fetching piece hashes");
+
+		// every peer that returned the file has all of its pieces
+		BitSet allPieces = new BitSet(pieceCount);
+		allPieces.set(0, pieceCount);
+		for (String peer : peers) {
+			picker.addPeer(peer, allPieces);
+		}
+
+		// ranges are only requested once the piece hashes are known
+		tasks.start("hashes", this::fetchHashes);
+	}
+
+	/**
+	 * This method is used to open the hidden file the download is written to
+	 * @throws IOException
+	 */
+	private void openPart() throws IOException {
+		// keep the pieces of an earlier attempt, otherwise start from an empty file
+		Path part = TransferState.partPath(fileName);
+		if (state.isResuming()) {
+			fileChannel = FileChannel.open(part, StandardOpenOption.WRITE, StandardOpenOption.READ);
+		} else {
+			fileChannel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+		allocate();
+	}
+
+	/**
+	 * This method is used to expect a range under a new key without asking a
+	 * peer for it, so an upload can be handed to receiveRange directly, as
+	 * the benchmarks do. The range starts at a piece.
+	 * @param offset
+	 * @param length
+	 * @return the key of the range
+	 * @throws IOException
+	 */
+	synchronized String expectRange(long offset, long length) throws IOException {
+		if (fileChannel == null) {
+			openPart();
+		}
+		int piece = (int) (offset / Settings.PIECE_SIZE);
+		int count = (int) ((offset + length - 1) / Settings.PIECE_SIZE) - piece + 1;
+		String key = Client.generateMessageKey();
+		pending.put(key, new RangeRequest(piece, count, offset, length, null));
+		return key;
+	}
+
+	/**
+	 * This method is used to give the file its full size before any piece is
+	 * written, so pieces can be written at their place in any order. Java
+	 * cannot reserve the blocks themselves, the last byte is written and the
+	 * file system fills in the rest as pieces arrive.
+	 * @throws IOException
+	 */
+	private void allocate() throws IOException {
+		if (fileChannel.size() > fileSize) {
+			fileChannel.truncate(fileSize);
+		} else if (fileChannel.size() < fileSize) {
+			fileChannel.write(ByteBuffer.allocate(1), fileSize - 1);
+		}
+	}
+
+	/**
+	 * This method is used to ask every peer for the piece hashes, wait for the
+	 * first usable answer and then start requesting ranges. Peers whose hashes
+	 * describe different content are left out of the download.
+	 */
+	private void fetchHashes() {
+		for (String peer : peers) {
+			client.requestHashes(peer, fileName).thenAccept(answer -> hashesReceived(peer, answer));
+		}
+		// describe the old copy while the peers answer
+		openBasis();
+		synchronized (this) {
+			long deadline = System.currentTimeMillis() + Settings.HASH_TIMEOUT;
+			try {
+				while (hashes == null && hashAnswers < peers.size() && System.currentTimeMillis() < deadline) {
+					wait(Math.max(1, deadline - System.currentTimeMillis()));
+				}
+			} catch (InterruptedException e) {
+				return; // the download was closed
+			}
+			if (hashes == null) {
+				System.out.println("No piece hashes for " + fileName + ", pieces will not be verified");
+			} else {
+				System.out.println("Verifying " + fileName + " against root " + hashes.rootHex());
+			}
+		}
+		verifyResumed();
+		startWorkers();
+	}
+
+	/**
+	 * This method is used to check the pieces an earlier attempt left on disk
+	 * against the hashes before they count as received, so a part file of
+	 * other content is never finished and shared. Pieces that do not match
+	 * are fetched again. Without hashes they are kept as they are.
+	 */
+	private void verifyResumed() {
+		BitSet done = state.getDone();
+		PieceHashes expected = hashes;
+		if (expected != null && !done.isEmpty()) {
+			progress.setStatus("checking pieces on disk");
+		}
+		MessageDigest digest = PieceHashes.newDigest();
+		int dropped = 0;
+		for (int i = done.nextSetBit(0); i >= 0 && i < pieceCount; i = done.nextSetBit(i + 1)) {
+			if (expected != null) {
+				long start = (long) i * Settings.PIECE_SIZE;
+				boolean valid;
+				try {
+					digest.reset();
+					hashWritten(digest, start, start + pieceLength(i));
+					valid = expected.matches(i, digest.digest());
+				} catch (IOException e) {
+					valid = false;
+				}
+				if (!valid) {
+					state.clear(i);
+					picker.reset(i);
+					dropped++;
+					continue;
+				}
+			}
+			received.addAndGet(pieceLength(i));
+		}
+		if (dropped > 0) {
+			System.out.println("Fetching " + dropped + " pieces of " + fileName + " again, they did not match their hash");
+		}
+		progress.setDone(received.get());
+	}
+
+	/**
+	 * This method is used to describe an older copy of the file, if there is
+	 * one, so that ranges can be sent as their difference to it
+	 */
+	private void openBasis() {
+		Path old = Paths.get("localFiles", fileName);
+		if (!Settings.DELTA_TRANSFER || !Files.isRegularFile(old)) {
+			return;
+		}
+		try {
+			basisChannel = FileChannel.open(old, StandardOpenOption.READ);
+			basis = Delta.Signature.compute(basisChannel);
+			if (basis != null) {
+				System.out.println("Offering the old copy of " + fileName + " as " + basis.weak.length + " blocks of "
+						+ basis.blockSize + " bytes");
+			}
+		} catch (IOException e) {
+			System.out.println("Not using the old copy of " + fileName + ": " + e.getMessage());
+			basis = null;
+		}
+	}
+
+	/**
+	 * This method is used to take the hashes a peer sent
+	 * @param peer
+	 * @param answer the hashes, or null if the peer could not read the file
+	 */
+	synchronized void hashesReceived(String peer, PieceHashes answer) {
+		hashAnswers++;
+		if (answer == null || answer.getFileSize() != fileSize) {
+			// the peer no longer has the file
+			System.out.println("Dropping " + peer + " from download of " + fileName + ", it cannot send the file");
+			picker.removePeer(peer);
+		} else if (answer.getPieceSize() != Settings.PIECE_SIZE) {
+			System.out.println(peer + " hashed " + fileName + " with a different piece size");
+		} else if (hashes == null) {
+			hashes = answer;
+		} else if (!hashes.sameContent(answer)) {
+			// same name and size, but not the same file
+			System.out.println("Dropping " + peer + " from download of " + fileName + ", its content differs");
+			picker.removePeer(peer);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * This method is used to start the request workers of every peer
+	 */
+	private void startWorkers() {
+		progress.setStatus(null);
+		// a single peer sends the whole missing range over one connection
+		int workersPerPeer = peers.size() > 1 ? Settings.SWARM_REQUESTS_PER_PEER : 1;
+		for (String peer : peers) {
+			for (int i = 0; i < workersPerPeer; i++) {
+				activeWorkers.incrementAndGet();
+				tasks.start("request-" + peer, () -> requestRanges(peer));
+			}
+		}
+	}
+
+	/**
+	 * This method is used to keep requesting ranges from one peer until the
+	 * file is complete or the peer has stalled too often
+	 * @param peer
+	 */
+	private void requestRanges(String peer) {
+		int stalls = 0;
+		try {
+			while (!finished && !picker.isComplete()) {
+				// wait here while downloads or this download are paused, holding no connection
+				client.awaitResume();
+				progress.awaitResume();
+
+				int piece = picker.next(peer, peers.size() == 1);
+				if (piece < 0) {
+					// nothing to ask this peer for right now
+					if (!picker.hasPeers()) {
+						break;
+					}
+					picker.awaitChange(Settings.STALL_TIMEOUT);
+					continue;
+				}
+				int count = peers.size() > 1 ? 1 : picker.extend(peer, piece, pieceCount);
+
+				// ask the peer to upload the range to our download port, after what is already written
+				long offset = (long) piece * Settings.PIECE_SIZE + partial.getOrDefault(piece, 0L);
+				long length = Math.min((long) (piece + count) * Settings.PIECE_SIZE, fileSize) - offset;
+				RangeRequest request = new RangeRequest(piece, count, offset, length, basis);
+				int codecs = (Settings.COMPRESSION ? DataChannel.CODEC_DEFLATE : 0)
+						| (request.basis != null ? DataChannel.CODEC_DELTA : 0);
+				String key = Client.generateMessageKey();
+				pending.put(key, request);
+				client.downloads.route(key, this);
+				client.sendMessage(Message.of(Protocol.DOWNLOAD).putString(peer).putString(fileName)
+						.putString(client.getLocalAddress()).putInt(client.downloadPort).putString(key).putLong(offset)
+						.putLong(length).putInt(client.getSharedFileCount()).putByte((byte) codecs));
+
+				int result = request.await();
+				pending.remove(key);
+				client.downloads.unroute(key);
+				request.cancel();
+				// give back the pieces of the range that did not arrive
+				for (int i = request.nextPiece; i < piece + count; i++) {
+					picker.release(i);
+				}
+				// keep the written part of a piece that stopped part way, unless it did not match
+				if (result == RangeRequest.CORRUPT) {
+					partial.remove(request.nextPiece);
+				} else if (request.nextPiece < piece + count
+						&& request.position > (long) request.nextPiece * Settings.PIECE_SIZE) {
+					partial.put(request.nextPiece, request.position - (long) request.nextPiece * Settings.PIECE_SIZE);
+				}
+
+				if (result == RangeRequest.RECEIVED || result == RangeRequest.PAUSED) {
+					stalls = 0;
+				} else if (result == RangeRequest.CORRUPT) {
+					// the peer sent a piece that does not match its hash
+					System.out.println("Piece " + request.nextPiece + " of " + fileName + " from " + peer
+							+ " failed verification");
+					if (request.basis != null && basis != null) {
+						// a block may have matched by mistake, fetch the rest in full
+						System.out.println("No longer using the old copy of " + fileName);
+						basis = null;
+					}
+					if (++stalls >= Settings.MAX_STALLS) {
+						System.out.println("Dropping " + peer + " from download of " + fileName);
+						picker.removePeer(peer);
+						break;
+					}
+				} else if (request.position > offset) {
+					// the connection dropped part way, resume from the next byte
+					stalls = 0;
+					if (!finished) {
+						System.out.println("Resuming " + fileName + " from byte " + request.position);
+					}
+				} else if (!picker.isDone(piece)) {
+					// the peer stalled, give the piece to somebody else
+					System.out.println("Piece " + piece + " of " + fileName + " stalled on " + peer);
+					if (++stalls >= Settings.MAX_STALLS) {
+						System.out.println("Dropping " + peer + " from download of " + fileName);
+						picker.removePeer(peer);
+						break;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (activeWorkers.decrementAndGet() == 0) {
+				finish();
+			}
+		}
+	}
+
+	/**
+	 * This method is used to handle a range that waits for an upload slot at
+	 * its peer. The peer repeats the place while the range waits.
+	 * @param peer
+	 * @param key
+	 * @param position
+	 */
+	void uploadQueued(String peer, String key, int position) {
+		RangeRequest request = pending.get(key);
+		if (request != null && request.queued(position)) {
+			if (position == 0) {
+				System.out.println(peer + " paused its upload of " + fileName);
+				progress.setStatus("paused by " + peer);
+			} else {
+				System.out.println("Waiting for an upload slot at " + peer + " for " + fileName + ", place " + position);
+				progress.setStatus("waiting for a slot at " + peer + ", place " + position);
+			}
+		}
+	}
+
+	/**
+	 * This method is used to receive one range and write it at its offset. The
+	 * DownloadManager has already read the header and routed the connection
+	 * here by its key. A peer that paused the range reconnects with the same
+	 * key and sends the rest, starting at the first byte not yet written.
+	 * Compressed chunks are inflated in memory and then written and hashed
+	 * like any other.
+	 * @param channel
+	 * @param in a pooled direct buffer in read mode, holding what was read past the header
+	 * @param size the file size the uploader sent
+	 * @param key
+	 * @param offset
+	 * @param length
+	 */
+	void receiveRange(SocketChannel channel, ByteBuffer in, long size, String key, long offset, long length) {
+		Socket socket = channel.socket();
+		RangeRequest request = null;
+		Inflater inflater = null;
+		try {
+			request = pending.get(key);
+			if (request == null || size != fileSize || offset != request.position
+					|| offset + length != request.offset + request.length) {
+				System.out.println("Unexpected range with key: " + key);
+				DataChannel.stopSender(socket);
+				return;
+			}
+			if (!request.attach(socket)) {
+				return;
+			}
+			progress.setStatus(null);
+			if (request.basis != null) {
+				// blocks that moved by less than the range or the slack can still be found
+				request.basis.write(channel, request.offset - request.length - Delta.WINDOW_SLACK,
+						request.offset + 2 * request.length + Delta.WINDOW_SLACK);
+			}
+
+			// Receive the range in chunks and write them at their position
+			Bandwidth.Throttle throttle = Bandwidth.download();
+			long position = offset;
+			long end = offset + length;
+			// hash each piece while it is written, starting with the part already on disk
+			PieceHashes expected = hashes;
+			MessageDigest digest = PieceHashes.newDigest();
+			int piece = (int) (offset / Settings.PIECE_SIZE);
+			long verified = (long) piece * Settings.PIECE_SIZE; // end of the pieces that matched their hash
+			hashWritten(digest, verified, offset);
+			advance(request, verified);
+			long chunkLeft = 0; // bytes of the current chunk not read yet
+			long copyLeft = 0; // bytes of the current copy instruction not copied yet
+			long copyFrom = 0; // where the rest of the copy is in the old copy
+			ByteBuffer packed = null; // compressed chunk, once the peer sends one
+			ByteBuffer plain = null; // the chunk inflated
+			while (position < end) {
+				if (client.pauseDownload || progress.isPaused()) {
+					// stop the peer, the bytes written so far are kept
+					DataChannel.stopSender(socket);
+					request.paused();
+					return;
+				}
+				// another peer already delivered this piece
+				if (request.count == 1 && picker.isDone(request.firstPiece)) {
+					DataChannel.stopSender(socket);
+					return;
+				}
+				ByteBuffer data; // file bytes to write next, in read mode
+				if (copyLeft > 0) {
+					if (plain == null) {
+						plain = ByteBuffer.allocate(DataChannel.DEFLATE_CHUNK);
+					}
+					plain.clear();
+					plain.limit((int) Math.min(plain.capacity(), copyLeft));
+					while (plain.hasRemaining()) {
+						if (basisChannel.read(plain, copyFrom + plain.position()) < 0) {
+							throw new IOException("Old copy of " + fileName + " is shorter than the peer expects");
+						}
+					}
+					data = plain.flip();
+					copyFrom += data.remaining();
+					copyLeft -= data.remaining();
+				} else if (chunkLeft == 0) {
+					DataChannel.fill(channel, in, DataChannel.CHUNK_HEADER);
+					byte type = in.get();
+					int chunkLength = in.getInt();
+					if (type == DataChannel.PAUSED) {
+						// the peer paused, it continues the range on a new connection
+						request.detach(socket);
+						progress.setStatus("paused by the peer");
+						return;
+					}
+					if (type == DataChannel.DEFLATE) {
+						if (inflater == null) {
+							inflater = new Inflater();
+							packed = ByteBuffer.allocate(DataChannel.DEFLATE_CHUNK);
+						}
+						if (plain == null) {
+							plain = ByteBuffer.allocate(DataChannel.DEFLATE_CHUNK);
+						}
+						throttle.acquire(chunkLength);
+						data = inflate(channel, in, chunkLength, end - position, inflater, packed, plain);
+					} else if (type == DataChannel.COPY && request.basis != null) {
+						// the peer found these bytes in the old copy
+						if (chunkLength != Long.BYTES + Integer.BYTES) {
+							throw new IOException("Bad chunk from peer");
+						}
+						DataChannel.fill(channel, in, chunkLength);
+						copyFrom = in.getLong();
+						copyLeft = in.getInt();
+						if (copyLeft <= 0 || copyLeft > end - position || copyFrom < 0
+								|| copyFrom + copyLeft > basisChannel.size()) {
+							throw new IOException("Bad copy instruction from peer");
+						}
+						continue;
+					} else if (type != DataChannel.DATA || chunkLength <= 0 || chunkLength > end - position) {
+						throw new IOException("Bad chunk from peer");
+					} else {
+						chunkLeft = chunkLength;
+						continue;
+					}
+				} else {
+					if (!in.hasRemaining()) {
+						DataChannel.fill(channel, in, 1);
+					}
+					int amount = (int) Math.min(in.remaining(), chunkLeft);
+					chunkLeft -= amount;
+					// a slow reader slows the peer down through the TCP window
+					throttle.acquire(amount);
+					data = in.duplicate();
+					data.limit(data.position() + amount);
+					in.position(in.position() + amount);
+				}
+				int amountRead = data.remaining();
+				progress.moved(amountRead);
+				// write the bytes straight from the buffer
+				ByteBuffer chunk = data.duplicate();
+				long chunkStart = position;
+				while (chunk.hasRemaining()) {
+					position += fileChannel.write(chunk, position);
+				}
+				request.position = position;
+				// feed the same bytes to the digest, one piece at a time
+				ByteBuffer hashed = data;
+				for (int used = 0; used < amountRead;) {
+					long pieceEnd = (long) piece * Settings.PIECE_SIZE + pieceLength(piece);
+					int part = (int) Math.min(amountRead - used, pieceEnd - (chunkStart + used));
+					hashed.limit(hashed.position() + part);
+					digest.update(hashed);
+					used += part;
+					if (chunkStart + used == pieceEnd) {
+						if (expected != null && !expected.matches(piece, digest.digest())) {
+							// keep the pieces before it, this one is fetched again
+							advance(request, verified);
+							request.corrupt();
+							return;
+						}
+						digest.reset();
+						verified = pieceEnd;
+						piece++;
+					}
+				}
+				request.progress();
+				advance(request, verified);
+			}
+			request.received();
+		} catch (Exception e) {
+			if (request != null) {
+				request.failed();
+			}
+		} finally {
+			if (inflater != null) {
+				inflater.end();
+			}
+		}
+	}
+
+	/**
+	 * This method is used to read a compressed chunk and inflate it
+	 * @param channel
+	 * @param in the connection's buffer in read mode, just past the chunk header
+	 * @param chunkLength
+	 * @param left bytes of the range not written yet
+	 * @param inflater
+	 * @param packed holds the compressed bytes
+	 * @param plain receives the file bytes
+	 * @return plain, in read mode
+	 * @throws IOException if the chunk is malformed
+	 */
+	private static ByteBuffer inflate(SocketChannel channel, ByteBuffer in, int chunkLength, long left,
+			Inflater inflater, ByteBuffer packed, ByteBuffer plain) throws IOException {
+		DataChannel.fill(channel, in, Integer.BYTES);
+		int rawLength = in.getInt();
+		int packedLength = chunkLength - Integer.BYTES;
+		if (packedLength <= 0 || packedLength > packed.capacity() || rawLength <= 0
+				|| rawLength > Math.min(plain.capacity(), left)) {
+			throw new IOException("Bad compressed chunk from peer");
+		}
+		packed.clear();
+		packed.limit(packedLength);
+		while (packed.hasRemaining()) {
+			if (!in.hasRemaining()) {
+				DataChannel.fill(channel, in, 1);
+			}
+			ByteBuffer part = in.duplicate();
+			part.limit(part.position() + Math.min(part.remaining(), packed.remaining()));
+			in.position(part.limit());
+			packed.put(part);
+		}
+		packed.flip();
+		plain.clear();
+		plain.limit(rawLength);
+		inflater.reset();
+		inflater.setInput(packed);
+		try {
+			inflater.inflate(plain);
+		} catch (DataFormatException e) {
+			throw new IOException("Bad compressed chunk from peer", e);
+		}
+		if (!inflater.finished() || plain.hasRemaining()) {
+			throw new IOException("Compressed chunk does not match its length");
+		}
+		return plain.flip();
+	}
+
+	/**
+	 * This method is used to hash the part of a piece that an earlier
+	 * connection already wrote, so a range continued mid-piece is still
+	 * verified as a whole
+	 * @param digest
+	 * @param from the start of the piece
+	 * @param to the first byte not written
+	 * @throws IOException
+	 */
+	private void hashWritten(MessageDigest digest, long from, long to) throws IOException {
+		if (from >= to) {
+			return;
+		}
+		ByteBuffer buffer = BufferPool.acquire();
+		try {
+			while (from < to) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), to - from));
+				int amount = fileChannel.read(buffer, from);
+				if (amount < 0) {
+					throw new IOException("File is shorter than the bytes already written");
+				}
+				buffer.flip();
+				digest.update(buffer);
+				from += amount;
+			}
+		} finally {
+			BufferPool.release(buffer);
+		}
+	}
+
+	/**
+	 * This method is used to record every piece of a range that has been
+	 * fully written
+	 * @param request
+	 * @param position the end of the bytes written so far
+	 */
+	private void advance(RangeRequest request, long position) {
+		while (true) {
+			int piece;
+			synchronized (request) {
+				// a cancelled request no longer owns its pieces
+				if (request.result >= 0 || request.nextPiece >= request.firstPiece + request.count
+						|| position < (long) request.nextPiece * Settings.PIECE_SIZE + pieceLength(request.nextPiece)) {
+					return;
+				}
+				piece = request.nextPiece++;
+				if (!picker.complete(piece)) {
+					continue;
+				}
+			}
+			pieceCompleted(request, piece);
+		}
+	}
+
+	/**
+	 * This method is used to get the length of a piece, the last one is shorter
+	 * @param piece
+	 * @return
+	 */
+	private long pieceLength(int piece) {
+		return Math.min(Settings.PIECE_SIZE, fileSize - (long) piece * Settings.PIECE_SIZE);
+	}
+
+	/**
+	 * This method is used to save and show the progress once a piece is stored
+	 * @param request
+	 * @param piece
+	 */
+	private void pieceCompleted(RangeRequest request, int piece) {
+		state.markDone(piece);
+		partial.remove(piece);
+		long total = received.addAndGet(pieceLength(piece));
+		progress.setDone(total);
+		// cancel duplicate endgame requests for the same piece
+		for (RangeRequest other : pending.values()) {
+			if (other != request && other.count == 1 && other.firstPiece == piece) {
+				other.cancel();
+			}
+		}
+		if (picker.isComplete()) {
+			finish();
+		}
+	}
+
+	/**
+	 * This method is used to close the download once the file is complete or
+	 * no peer is left
+	 */
+	private synchronized void finish() {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		try {
+			fileChannel.close();
+			if (basisChannel != null) {
+				basisChannel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		for (Map.Entry<String, RangeRequest> entry : pending.entrySet()) {
+			client.downloads.unroute(entry.getKey());
+			entry.getValue().cancel();
+		}
+		for (String peer : peers) {
+			client.forgetHashes(peer, fileName);
+		}
+		if (picker.isComplete() && !publish()) {
+			// the progress file stays, the pieces are kept for another try
+			interactController.showErrorDialog("Could not save the downloaded file: " + fileName);
+		} else if (picker.isComplete()) {
+			// every piece matched, the file need not be hashed again to share it
+			if (hashes != null) {
+				client.getHashManifest().record(fileName, hashes);
+			}
+			state.delete();
+			System.out.println("File downloaded: " + fileName);
+			interactController.showDialog("Download Complete: " + fileName);
+		} else {
+			// the progress file stays, downloading the file again resumes it
+			System.out.println("Download interrupted: " + fileName);
+			interactController.showErrorDialog("Download interrupted, download it again to resume: " + fileName);
+		}
+		// stop the workers still waiting for a piece and let the next download start
+		client.removeProgress(progress);
+		tasks.shutdown();
+		client.downloads.finished(this);
+	}
+
+	/**
+	 * This method is used to give the complete file its real name in one step,
+	 * replacing an older file of the same name
+	 * @return true if the file was renamed
+	 */
+	private boolean publish() {
+		Path part = TransferState.partPath(fileName);
+		Path target = Paths.get("localFiles", fileName);
+		try {
+			try {
+				Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+			return true;
+		} catch (IOException e) {
+			System.out.println("Could not rename " + part + " to " + fileName + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * This class is used to track one outstanding range request
+	 */
+	private static class RangeRequest {
+
+		static final int RECEIVED = 0;
+		static final int STALLED = 1;
+		static final int FAILED = 2;
+		static final int PAUSED = 3;
+		static final int CORRUPT = 4;
+
+		private final int firstPiece;
+		private final int count;
+		private final long offset;
+		private final long length;
+		private final Delta.Signature basis; // blocks of the old copy offered with the range, or null
+		private volatile int nextPiece; // first piece of the range not yet written
+		private volatile long position; // first byte of the range not yet written
+		private volatile long lastProgress = System.currentTimeMillis();
+		private volatile Socket socket;
+		private volatile int queuePosition = -1; // place in the peer's upload queue, 0 if paused there, -1 if neither
+		private int result = -1;
+
+		RangeRequest(int firstPiece, int count, long offset, long length, Delta.Signature basis) {
+			this.firstPiece = firstPiece;
+			this.count = count;
+			this.offset = offset;
+			this.length = length;
+			this.basis = basis;
+			this.nextPiece = firstPiece;
+			this.position = offset;
+		}
+
+		/**
+		 * This method is used to wait until the range arrives, fails or stalls
+		 * @return how the request ended
+		 * @throws InterruptedException
+		 */
+		synchronized int await() throws InterruptedException {
+			while (result < 0) {
+				long idle = System.currentTimeMillis() - lastProgress;
+				if (idle >= Settings.STALL_TIMEOUT) {
+					return STALLED;
+				}
+				wait(Settings.STALL_TIMEOUT - idle);
+			}
+			return result;
+		}
+
+		/**
+		 * This method is used to attach the data connection of the range
+		 * @param socket
+		 * @return false if the request was already cancelled
+		 */
+		synchronized boolean attach(Socket socket) {
+			this.socket = socket;
+			lastProgress = System.currentTimeMillis();
+			return result < 0;
+		}
+
+		/**
+		 * This method is used to let go of a connection the peer paused, the
+		 * request stays open for the connection that continues it
+		 * @param socket
+		 */
+		synchronized void detach(Socket socket) {
+			if (this.socket == socket) {
+				this.socket = null;
+			}
+			lastProgress = System.currentTimeMillis();
+		}
+
+		void progress() {
+			lastProgress = System.currentTimeMillis();
+		}
+
+		/**
+		 * This method is used to note the place of the range in the upload
+		 * queue of the peer, which keeps it from counting as stalled
+		 * @param position
+		 * @return true if the place changed
+		 */
+		boolean queued(int position) {
+			progress();
+			int previous = queuePosition;
+			queuePosition = position;
+			return previous != position;
+		}
+
+		synchronized void received() {
+			finish(RECEIVED);
+		}
+
+		synchronized void failed() {
+			finish(FAILED);
+		}
+
+		synchronized void paused() {
+			finish(PAUSED);
+		}
+
+		synchronized void corrupt() {
+			finish(CORRUPT);
+		}
+
+		private void finish(int result) {
+			if (this.result < 0) {
+				this.result = result;
+			}
+			notifyAll();
+		}
+
+		/**
+		 * This method is used to stop the request and close its connection
+		 */
+		synchronized void cancel() {
+			finish(FAILED);
+			try {
+				if (socket != null && result != RECEIVED) {
+					socket.close();
+				}
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package com.project5;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class is used to run every download of the client. All uploading
+ * peers connect to the one download listener, and each connection is routed
+ * to its download by the key of the range it carries. Downloads beyond the
+ * parallelism limit wait in a queue and start as others finish. Ranges are
+ * received in a group of their own with no cap, since every one of them was
+ * asked for by a download and its uploader already holds a slot for it.
+ * Waiting for a local transfer slot would count as a stall of the peer.
+ */
+public class DownloadManager {
+
+	private final Client client;
+	private final ServerSocket serverSocket;
+	private final ConcurrentHashMap<String, Download> routes = new ConcurrentHashMap<>(); // message key -> download
+	private final ArrayDeque<Download> queue = new ArrayDeque<>(); // downloads waiting for a slot
+	private final HashMap<String, Download> active = new HashMap<>(); // file name -> running download
+	private final TaskGroup receivers = new TaskGroup("receive", 0); // one task per range connection
+	private volatile boolean closed = false;
+
+	/**
+	 * This is the constructor for the DownloadManager class
+	 * @param client
+	 * @param serverSocket the client's download listener
+	 */
+	public DownloadManager(Client client, ServerSocket serverSocket) {
+		this.client = client;
+		this.serverSocket = serverSocket;
+	}
+
+	/**
+	 * This method is used to start accepting range connections
+	 */
+	public void start() {
+		Workers.start("download-listener", this::acceptRanges);
+	}
+
+	/**
+	 * This method is used to add a download, started now if a slot is free
+	 * @param download
+	 * @return false if the file is already being downloaded or queued
+	 */
+	public synchronized boolean enqueue(Download download) {
+		if (active.containsKey(download.getFileName())) {
+			return false;
+		}
+		for (Download queued : queue) {
+			if (queued.getFileName().equals(download.getFileName())) {
+				return false;
+			}
+		}
+		queue.add(download);
+		client.addProgress(download.getProgress());
+		if (active.size() >= Settings.MAX_DOWNLOADS) {
+			System.out.println("Queued " + download.getFileName() + " behind " + (queue.size() - 1) + " downloads");
+		}
+		startNext();
+		return true;
+	}
+
+	/**
+	 * This method is used to start queued downloads while slots are free
+	 */
+	private synchronized void startNext() {
+		while (!closed && active.size() < Settings.MAX_DOWNLOADS && !queue.isEmpty()) {
+			Download download = queue.poll();
+			active.put(download.getFileName(), download);
+			try {
+				download.start();
+			} catch (IOException e) {
+				active.remove(download.getFileName());
+				client.removeProgress(download.getProgress());
+				System.out.println("Could not start download: " + e.getMessage());
+				client.getInteractController().showErrorDialog("Could not start download: " + download.getFileName());
+			}
+		}
+	}
+
+	/**
+	 * This method is used to free the slot of a download that has ended
+	 * @param download
+	 */
+	synchronized void finished(Download download) {
+		active.remove(download.getFileName(), download);
+		startNext();
+	}
+
+	/**
+	 * This method is used to send the connection carrying a range to its
+	 * download
+	 * @param key
+	 * @param download
+	 */
+	void route(String key, Download download) {
+		routes.put(key, download);
+	}
+
+	/**
+	 * This method is used to stop routing a range that has ended
+	 * @param key
+	 */
+	void unroute(String key) {
+		routes.remove(key);
+	}
+
+	/**
+	 * This method is used to pass on the place of a range in the upload queue
+	 * of its peer
+	 * @param uploader
+	 * @param key
+	 * @param position
+	 */
+	void uploadQueued(String uploader, String key, int position) {
+		Download download = routes.get(key);
+		if (download != null) {
+			download.uploadQueued(uploader, key, position);
+		}
+	}
+
+	/**
+	 * This method is used to stop accepting ranges and starting downloads
+	 */
+	public void close() {
+		closed = true;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		receivers.shutdown();
+	}
+
+	/**
+	 * This method is used to accept the connections of uploading peers
+	 */
+	private void acceptRanges() {
+		while (!closed) {
+			try {
+				Socket rangeSocket = serverSocket.accept();
+				// ranges start right away, the requests of the downloads already limit them
+				receivers.start("receive", () -> receiveRange(rangeSocket));
+			} catch (IOException e) {
+				if (!closed) {
+					System.out.println("Error accepting range: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * This method is used to read the header of a range and hand the
+	 * connection to the download that asked for it. The range is read
+	 * through the channel into a pooled direct buffer.
+	 * @param rangeSocket
+	 */
+	private void receiveRange(Socket rangeSocket) {
+		ByteBuffer in = BufferPool.acquire();
+		try (SocketChannel channel = rangeSocket.getChannel()) {
+			receivers.track(channel);
+			Socket socket = channel.socket();
+			// Read the header sent by the uploader, the key is written with writeUTF
+			in.flip();
+			DataChannel.fill(channel, in, 10);
+			long size = in.getLong();
+			int keyLength = in.getShort() & 0xFFFF;
+			if (keyLength > DataChannel.MAX_KEY_LENGTH) {
+				System.out.println("Rejected range with a key of " + keyLength + " bytes");
+				return;
+			}
+			DataChannel.fill(channel, in, keyLength + 16);
+			byte[] keyBytes = new byte[keyLength];
+			in.get(keyBytes);
+			String key = new String(keyBytes, StandardCharsets.UTF_8);
+			long offset = in.getLong();
+			long length = in.getLong();
+
+			Download download = routes.get(key);
+			if (download == null) {
+				// the range was given up, tell the peer so it stops cleanly
+				System.out.println("Unexpected range with key: " + key);
+				DataChannel.stopSender(socket);
+				return;
+			}
+			download.receiveRange(channel, in, size, key, offset, length);
+		} catch (IOException e) {
+			System.out.println("Error receiving range: " + e.getMessage());
+		} finally {
+			BufferPool.release(in);
+		}
+	}
+}
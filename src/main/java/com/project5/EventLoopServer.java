@@ -0,0 +1,276 @@
+package com.project5;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves clients from a small fixed set of selector threads instead of one
+ * thread per client. Every connection is non-blocking, keeps its own decode
+ * buffer for partial frames and only asks for write readiness while it has
+ * queued frames that the socket would not take. A client that lets more than
+ * Settings.MAX_QUEUED_BYTES queue up is dropped, as the blocking writes of
+ * the thread per client path would have stalled its senders instead.
+ */
+public class EventLoopServer {
+
+	private static final int INITIAL_BUFFER_SIZE = 1024; // decode buffer of an idle connection
+
+	private final ServerSocketChannel serverChannel;
+	private final Loop[] loops;
+
+	/**
+	 * Constructor for the event loop server
+	 *
+	 * @param serverChannel The bound server channel
+	 * @param threads       The number of selector threads
+	 * @throws IOException
+	 */
+	public EventLoopServer(ServerSocketChannel serverChannel, int threads) throws IOException {
+		this.serverChannel = serverChannel;
+		this.loops = new Loop[Math.max(1, threads)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new Loop(i);
+		}
+	}
+
+	/**
+	 * Starts the selector threads and accepts connections until the server
+	 * channel is closed
+	 */
+	public void run() {
+		for (Loop loop : loops) {
+			loop.start();
+		}
+		System.out.println("Server is running with " + loops.length + " selector threads");
+		int next = 0;
+		try {
+			while (serverChannel.isOpen()) {
+				// Accept incoming connections and spread them over the loops
+				SocketChannel channel = serverChannel.accept();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				loops[next].register(channel);
+				next = (next + 1) % loops.length;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * A selector thread that owns a share of the connections
+	 */
+	private static class Loop extends Thread {
+
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+		private final ConcurrentLinkedQueue<Connection> flushes = new ConcurrentLinkedQueue<>();
+
+		Loop(int index) throws IOException {
+			super("selector-" + index);
+			this.selector = Selector.open();
+		}
+
+		/**
+		 * Hands a new connection to this loop
+		 *
+		 * @param channel The accepted channel
+		 */
+		void register(SocketChannel channel) {
+			registrations.add(channel);
+			selector.wakeup();
+		}
+
+		/**
+		 * Asks this loop to write the queued frames of a connection
+		 *
+		 * @param connection The connection with queued frames
+		 */
+		void requestFlush(Connection connection) {
+			if (Thread.currentThread() == this) {
+				connection.flush();
+			} else {
+				flushes.add(connection);
+				selector.wakeup();
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					selector.select();
+
+					// register connections handed over by the acceptor
+					SocketChannel channel;
+					while ((channel = registrations.poll()) != null) {
+						Connection connection = new Connection(this, channel);
+						try {
+							connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+						} catch (ClosedChannelException e) {
+							connection.close();
+						}
+					}
+
+					// write frames queued by other threads
+					Connection pending;
+					while ((pending = flushes.poll()) != null) {
+						pending.flush();
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						Connection connection = (Connection) key.attachment();
+						if (!key.isValid()) {
+							connection.session.closeAllStreams();
+							continue;
+						}
+						if (key.isWritable()) {
+							connection.flush();
+						}
+						if (key.isValid() && key.isReadable()) {
+							connection.read();
+						}
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A non-blocking client connection and its buffers
+	 */
+	public static class Connection {
+
+		private final Loop loop;
+		private final SocketChannel channel;
+		private final ClientManager session;
+		private final ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+		private final AtomicLong queuedBytes = new AtomicLong(); // bytes of the frames in the write queue
+		private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE); // partial frames, in write mode
+		private volatile SelectionKey key;
+
+		Connection(Loop loop, SocketChannel channel) {
+			this.loop = loop;
+			this.channel = channel;
+			this.session = new ClientManager(this);
+		}
+
+		/**
+		 * Reads what the socket has and hands every complete frame to the
+		 * session
+		 */
+		void read() {
+			try {
+				int read = channel.read(readBuffer);
+				if (read < 0) {
+					session.closeAllStreams();
+					return;
+				}
+				readBuffer.flip();
+				while (readBuffer.remaining() >= 4) {
+					int length = readBuffer.getInt(readBuffer.position());
+					Frames.checkLength(length);
+					if (readBuffer.remaining() < 4 + length) {
+						// grow the buffer when the frame does not fit
+						if (readBuffer.capacity() < 4 + length) {
+							ByteBuffer larger = ByteBuffer.allocate(4 + length);
+							larger.put(readBuffer);
+							readBuffer = larger;
+							return;
+						}
+						break;
+					}
+					readBuffer.getInt();
+					byte[] frame = new byte[length];
+					readBuffer.get(frame);
+					session.handleFrame(frame);
+				}
+				readBuffer.compact();
+				// give the memory of a large frame back once it is decoded
+				if (readBuffer.position() == 0 && readBuffer.capacity() > INITIAL_BUFFER_SIZE) {
+					readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+				}
+			} catch (Exception e) {
+				session.closeAllStreams();
+			}
+		}
+
+		/**
+		 * Queues a frame and asks the owning loop to write it, or drops the
+		 * client if it has stopped reading what is queued already
+		 *
+		 * @param payload The frame payload
+		 */
+		public void send(byte[] payload) {
+			if (!channel.isOpen()) {
+				return; // closed, nothing is written any more
+			}
+			long queued = queuedBytes.addAndGet(4 + payload.length);
+			if (queued > Settings.MAX_QUEUED_BYTES) {
+				queuedBytes.addAndGet(-4 - payload.length);
+				System.out.println("Dropping a client that left " + queued + " bytes unread");
+				session.closeAllStreams();
+				return;
+			}
+			ByteBuffer frame = ByteBuffer.allocate(4 + payload.length);
+			frame.putInt(payload.length).put(payload).flip();
+			writeQueue.add(frame);
+			loop.requestFlush(this);
+		}
+
+		/**
+		 * Writes queued frames until the socket stops taking data, and waits
+		 * for write readiness only while something is left
+		 */
+		void flush() {
+			try {
+				ByteBuffer frame;
+				while ((frame = writeQueue.peek()) != null) {
+					channel.write(frame);
+					if (frame.hasRemaining()) {
+						break;
+					}
+					writeQueue.poll();
+					queuedBytes.addAndGet(-frame.capacity());
+				}
+				if (key != null && key.isValid()) {
+					int ops = writeQueue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+					if (key.interestOps() != ops) {
+						key.interestOps(ops);
+					}
+				}
+			} catch (IOException e) {
+				session.closeAllStreams();
+			}
+		}
+
+		/**
+		 * Closes the connection
+		 */
+		public void close() {
+			try {
+				if (key != null) {
+					key.cancel();
+				}
+				channel.close();
+			} catch (IOException e) {
+				// already closed
+			}
+			// nothing queued will be written now
+			writeQueue.clear();
+		}
+	}
+}
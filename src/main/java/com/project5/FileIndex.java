@@ -0,0 +1,226 @@
+package com.project5;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class is used to keep an in-memory index of the shared directory. It
+ * is built once at startup and kept up to date by a WatchService, so a search
+ * from another peer never lists the directory.
+ */
+public class FileIndex {
+
+	private final File directory;
+	private final TrigramIndex<String> names = new TrigramIndex<>(); // shared file names
+	private final ConcurrentHashMap<String, Entry> files = new ConcurrentHashMap<>(); // file name -> size and mtime
+	private volatile WatchService watchService;
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>(); // told about every change
+
+	/**
+	 * This is the constructor for the FileIndex class
+	 * @param directory the shared directory
+	 */
+	public FileIndex(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * This method is used to build the index and start watching the directory
+	 */
+	public void start() {
+		try {
+			// register the watch before the scan so no change is missed in between
+			watchService = FileSystems.getDefault().newWatchService();
+			directory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			Workers.start("file-index", this::watch);
+		} catch (IOException e) {
+			System.out.println("Could not watch " + directory + ", the index will not see new files");
+		}
+		rebuild();
+		System.out.println("Indexed " + names.size() + " shared files");
+	}
+
+	/**
+	 * This method is used to find the shared files whose name contains the
+	 * text, ignoring case
+	 * @param text
+	 * @return
+	 */
+	public List<Entry> search(String text) {
+		List<String> matches = names.search(text);
+		ArrayList<Entry> entries = new ArrayList<>(matches.size());
+		for (String name : matches) {
+			Entry entry = files.get(name);
+			if (entry != null) {
+				entries.add(entry);
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * This method is used to look up a shared file by its exact name
+	 * @param name
+	 * @return the file, or null if it is not shared
+	 */
+	public Entry get(String name) {
+		return files.get(name);
+	}
+
+	/**
+	 * This method is used to get every shared file
+	 * @return
+	 */
+	public List<Entry> entries() {
+		return new ArrayList<>(files.values());
+	}
+
+	/**
+	 * This method is used to get the number of shared files
+	 * @return
+	 */
+	public int size() {
+		return files.size();
+	}
+
+	/**
+	 * This method is used to be told about files that are added, changed or
+	 * removed from now on
+	 * @param listener
+	 */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * This method is used to stop watching the directory
+	 */
+	public void close() {
+		try {
+			if (watchService != null) {
+				watchService.close();
+			}
+		} catch (IOException e) {
+			// already closed
+		}
+	}
+
+	/**
+	 * This method is used to index every file of the directory again
+	 */
+	private void rebuild() {
+		HashSet<String> gone = new HashSet<>(files.keySet());
+		File[] fileList = directory.listFiles();
+		if (fileList != null) {
+			for (File file : fileList) {
+				update(file.getName());
+				gone.remove(file.getName());
+			}
+		}
+		// files that disappeared while events were lost
+		for (String fileName : gone) {
+			update(fileName);
+		}
+	}
+
+	/**
+	 * This method is used to add, refresh or remove one file
+	 * @param fileName
+	 */
+	private void update(String fileName) {
+		// skip hidden files, such as the progress of unfinished downloads
+		if (fileName.startsWith(".")) {
+			return;
+		}
+		File file = new File(directory, fileName);
+		if (file.isFile()) {
+			Entry entry = new Entry(fileName, file.length(), file.lastModified());
+			Entry old = files.put(fileName, entry);
+			names.put(fileName, fileName);
+			if (old == null || old.size != entry.size || old.lastModified != entry.lastModified) {
+				for (Listener listener : listeners) {
+					listener.added(entry);
+				}
+			}
+		} else {
+			names.remove(fileName);
+			if (files.remove(fileName) != null) {
+				for (Listener listener : listeners) {
+					listener.removed(fileName);
+				}
+			}
+		}
+	}
+
+	/**
+	 * This method is used to apply directory changes as they are reported
+	 */
+	private void watch() {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						// events were lost, start over
+						rebuild();
+					} else {
+						update(((Path) event.context()).getFileName().toString());
+					}
+				}
+				if (!key.reset()) {
+					System.out.println("Stopped watching " + directory);
+					return;
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// the index was closed
+		}
+	}
+
+	/**
+	 * This interface is used to follow the changes of the index
+	 */
+	public interface Listener {
+
+		/**
+		 * This method is called when a file is added or changes
+		 * @param file
+		 */
+		void added(Entry file);
+
+		/**
+		 * This method is called when a file is removed
+		 * @param fileName
+		 */
+		void removed(String fileName);
+	}
+
+	/**
+	 * This class is used to describe one shared file
+	 */
+	public static class Entry {
+
+		public final String name;
+		public final long size;
+		public final long lastModified;
+
+		Entry(String name, long size, long lastModified) {
+			this.name = name;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.project5;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+/**
+ * This class is used to read and write the frames of the control channel. A
+ * frame is a 4 byte length followed by that many bytes. The first frames carry
+ * the client's public key and the session key wrapped with it, every later
+ * frame is a message encrypted with the session key.
+ */
+public class Frames {
+
+	public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024; // largest frame either side accepts
+
+	/**
+	 * This method is used to write one frame and flush it
+	 * @param output
+	 * @param payload
+	 * @throws IOException
+	 */
+	public static void write(DataOutputStream output, byte[] payload) throws IOException {
+		synchronized (output) {
+			output.writeInt(payload.length);
+			output.write(payload);
+			output.flush();
+		}
+	}
+
+	/**
+	 * This method is used to read one frame
+	 * @param input
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] read(DataInputStream input) throws IOException {
+		int length = input.readInt();
+		checkLength(length);
+		byte[] payload = new byte[length];
+		input.readFully(payload);
+		return payload;
+	}
+
+	/**
+	 * This method is used to reject frame lengths that cannot be valid
+	 * @param length
+	 * @throws IOException
+	 */
+	public static void checkLength(int length) throws IOException {
+		if (length < 0 || length > MAX_FRAME_SIZE) {
+			throw new IOException("Invalid frame length: " + length);
+		}
+	}
+
+	/**
+	 * This method is used to put the protocol version in front of the
+	 * client's public key, the first frame of every connection
+	 * @param publicKey
+	 * @return
+	 */
+	public static byte[] withVersion(byte[] publicKey) {
+		byte[] frame = new byte[publicKey.length + 1];
+		frame[0] = Protocol.VERSION;
+		System.arraycopy(publicKey, 0, frame, 1, publicKey.length);
+		return frame;
+	}
+
+	/**
+	 * This method is used to check the protocol version of the first frame
+	 * and take the client's public key from it
+	 * @param frame
+	 * @return
+	 * @throws GeneralSecurityException
+	 * @throws IOException
+	 */
+	public static PublicKey readVersionedKey(byte[] frame) throws GeneralSecurityException, IOException {
+		if (frame.length == 0 || frame[0] != Protocol.VERSION) {
+			throw new IOException("Unsupported protocol version: " + (frame.length == 0 ? "none" : frame[0]));
+		}
+		return decodePublicKey(Arrays.copyOfRange(frame, 1, frame.length));
+	}
+
+	/**
+	 * This method is used to rebuild a public key sent in a frame
+	 * @param encoded
+	 * @return
+	 * @throws GeneralSecurityException
+	 */
+	public static PublicKey decodePublicKey(byte[] encoded) throws GeneralSecurityException {
+		return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+	}
+}
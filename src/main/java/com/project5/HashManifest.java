@@ -0,0 +1,283 @@
+package com.project5;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class is used to keep the piece hashes of the shared files on disk, in
+ * a hidden manifest keyed by file name, size and modification time. The
+ * manifest is read in the background after startup and only files that are
+ * new or changed since they were hashed are hashed again, so a large sharer
+ * starts without reading its files.
+ */
+public class HashManifest implements FileIndex.Listener {
+
+	private static final int MAGIC = 0x5035484D; // "P5HM"
+
+	private final File directory;
+	private final Path path;
+	private final ConcurrentHashMap<String, PieceHashes> hashes = new ConcurrentHashMap<>(); // file name -> hashes
+	private final LinkedHashSet<String> queue = new LinkedHashSet<>(); // files waiting to be hashed, oldest first
+	private volatile boolean loaded = false;
+	private volatile boolean dirty = false; // changed since the manifest was last saved
+	private volatile boolean closed = false;
+
+	/**
+	 * This is the constructor for the HashManifest class
+	 * @param directory the shared directory
+	 */
+	public HashManifest(File directory) {
+		this.directory = directory;
+		this.path = new File(directory, ".hashes").toPath();
+	}
+
+	/**
+	 * This method is used to load the manifest and bring it up to date with
+	 * the index, both in the background
+	 * @param index
+	 */
+	public void start(FileIndex index) {
+		index.addListener(this);
+		Workers.start("hash-manifest", () -> {
+			load();
+			for (FileIndex.Entry file : index.entries()) {
+				added(file);
+			}
+			hashChangedFiles();
+		});
+	}
+
+	/**
+	 * This method is used to get the hashes of a shared file, from the
+	 * manifest when the file has not changed since, otherwise by hashing it
+	 * now
+	 * @param fileName
+	 * @param pieceSize
+	 * @return
+	 * @throws IOException
+	 */
+	public PieceHashes get(String fileName, int pieceSize) throws IOException {
+		awaitLoaded();
+		File file = new File(directory, fileName);
+		PieceHashes known = hashes.get(fileName);
+		if (known != null && known.describes(file, pieceSize)) {
+			return known;
+		}
+		PieceHashes computed = PieceHashes.compute(file, pieceSize);
+		if (pieceSize == Settings.PIECE_SIZE) {
+			put(fileName, computed);
+		}
+		return computed;
+	}
+
+	/**
+	 * This method is used to record the hashes of a file that was downloaded
+	 * and verified, so it is not hashed again when it is shared
+	 * @param fileName
+	 * @param received the hashes the download was verified against
+	 */
+	public void record(String fileName, PieceHashes received) {
+		File file = new File(directory, fileName);
+		put(fileName, received.forFile(file.lastModified()));
+	}
+
+	@Override
+	public void added(FileIndex.Entry file) {
+		synchronized (queue) {
+			queue.add(file.name);
+			queue.notifyAll();
+		}
+	}
+
+	@Override
+	public void removed(String fileName) {
+		if (hashes.remove(fileName) != null) {
+			dirty = true;
+			synchronized (queue) {
+				queue.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * This method is used to stop hashing and save what is not saved yet
+	 */
+	public void close() {
+		closed = true;
+		synchronized (queue) {
+			queue.notifyAll();
+		}
+		if (dirty && loaded) {
+			save();
+		}
+	}
+
+	/**
+	 * This method is used to hash the files that changed, one at a time, and
+	 * save the manifest whenever there is nothing left to hash
+	 */
+	private void hashChangedFiles() {
+		while (!closed) {
+			String fileName;
+			synchronized (queue) {
+				while (queue.isEmpty() && !closed) {
+					if (dirty) {
+						break;
+					}
+					try {
+						queue.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (queue.isEmpty()) {
+					fileName = null;
+				} else {
+					fileName = queue.iterator().next();
+					queue.remove(fileName);
+				}
+			}
+			if (fileName == null) {
+				if (!closed) {
+					save();
+				}
+				continue;
+			}
+			File file = new File(directory, fileName);
+			// unfinished downloads are hashed once they are complete
+			if (!file.isFile() || TransferState.sidecarPath(fileName).toFile().exists()) {
+				continue;
+			}
+			PieceHashes known = hashes.get(fileName);
+			if (known != null && known.describes(file, Settings.PIECE_SIZE)) {
+				continue;
+			}
+			try {
+				put(fileName, PieceHashes.compute(file, Settings.PIECE_SIZE));
+			} catch (IOException e) {
+				System.out.println("Could not hash " + fileName + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * This method is used to store the hashes of a file
+	 * @param fileName
+	 * @param fileHashes
+	 */
+	private void put(String fileName, PieceHashes fileHashes) {
+		hashes.put(fileName, fileHashes);
+		dirty = true;
+		synchronized (queue) {
+			queue.notifyAll();
+		}
+	}
+
+	/**
+	 * This method is used to wait until the manifest has been read
+	 */
+	private void awaitLoaded() {
+		synchronized (this) {
+			while (!loaded && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * This method is used to read the manifest, mapped into memory. Entries
+	 * are checked against the files when they are used, not here.
+	 */
+	private void load() {
+		long start = System.nanoTime();
+		if (Files.exists(path)) {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				if (buffer.getInt() != MAGIC) {
+					throw new IOException("not a hash manifest");
+				}
+				int count = buffer.getInt();
+				for (int i = 0; i < count; i++) {
+					byte[] name = new byte[buffer.getInt()];
+					buffer.get(name);
+					long fileSize = buffer.getLong();
+					long lastModified = buffer.getLong();
+					int pieceSize = buffer.getInt();
+					int pieceCount = buffer.getInt();
+					if (pieceSize <= 0 || pieceCount != PieceHashes.pieceCount(fileSize, pieceSize)) {
+						throw new IOException("damaged entry");
+					}
+					byte[][] pieces = new byte[pieceCount][PieceHashes.HASH_LENGTH];
+					for (byte[] piece : pieces) {
+						buffer.get(piece);
+					}
+					hashes.putIfAbsent(new String(name, StandardCharsets.UTF_8),
+							new PieceHashes(fileSize, pieceSize, lastModified, pieces));
+				}
+			} catch (Exception e) {
+				// a damaged manifest only costs hashing the files again
+				System.out.println("Ignoring unreadable hash manifest: " + e.getMessage());
+				hashes.clear();
+			}
+		}
+		synchronized (this) {
+			loaded = true;
+			notifyAll();
+		}
+		System.out.println("Loaded hashes of " + hashes.size() + " files in " + (System.nanoTime() - start) / 1000000
+				+ " ms");
+	}
+
+	/**
+	 * This method is used to write the manifest, through a temporary file so a
+	 * crash never leaves it half written
+	 */
+	private synchronized void save() {
+		dirty = false;
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			Map<String, PieceHashes> snapshot = new HashMap<>(hashes);
+			output.writeInt(MAGIC);
+			output.writeInt(snapshot.size());
+			for (Map.Entry<String, PieceHashes> entry : snapshot.entrySet()) {
+				byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+				PieceHashes fileHashes = entry.getValue();
+				output.writeInt(name.length);
+				output.write(name);
+				output.writeLong(fileHashes.getFileSize());
+				output.writeLong(fileHashes.getLastModified());
+				output.writeInt(fileHashes.getPieceSize());
+				output.writeInt(fileHashes.getPieceCount());
+				for (int i = 0; i < fileHashes.getPieceCount(); i++) {
+					output.write(fileHashes.getHash(i));
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Could not save hash manifest: " + e.getMessage());
+			return;
+		}
+		try {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.out.println("Could not save hash manifest: " + e.getMessage());
+		}
+	}
+}
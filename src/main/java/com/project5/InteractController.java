@@ -1,5 +1,8 @@
 package com.project5;
 
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
 import javafx.application.Platform;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
@@ -10,11 +13,12 @@ import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.control.ListView;
 import javafx.scene.control.ProgressBar;
+import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 import java.net.Socket;
 import java.util.ArrayList;
-import java.util.HashMap;
 
 public class InteractController {
 
@@ -45,6 +49,11 @@ public class InteractController {
     @FXML
     private volatile ProgressBar progressUpload;
 
+    @FXML
+    private volatile ListView<TransferProgress> transferListView; // One line per upload and download
+
+    private Timeline progressTimer; // Samples the transfers on the JavaFX thread
+
     private String username;
 
     private volatile Stage stage;
@@ -79,7 +88,7 @@ public class InteractController {
                                                         // client
                 client.receiver(); // start client receiving messages from server
             }
-            client.sendMessage(username);
+            client.sendMessage(Message.of(Protocol.LOGIN).putString(username));
         } catch (Exception e) {
             Platform.runLater(() -> showErrorDialog("Server not available of given address and port"));
         }
@@ -103,12 +112,14 @@ public class InteractController {
                     stage.setTitle(username); // starts main GUI
                     // set on close request to disconnect client
                     stage.setOnCloseRequest(e -> {
+                        progressTimer.stop();
                         if (client != null) {
                             stage.close();
                             client.disconnect();
                         }
                     });
                     stage.show();
+                    startProgressTimer();
                 } catch (Exception e) {
                     System.out.println("Error occurred loading Main GUI: " + e.getMessage());
                 }
@@ -127,12 +138,8 @@ public class InteractController {
         String searchText = textSearch.getText();
         // if search text is not empty and client is not null
         if (!searchText.isEmpty() && client != null) {
-            // clear the result list and map
-            client.resultList = new ArrayList<>();
-            client.resultMap = new HashMap<>();
-            // update the file list with the result list
-            updateFileList(client.resultList);
-            client.sendMessage("##SEARCH," + searchText);
+            // start a new search, results of the last one are dropped
+            client.search(searchText);
         } else {
             showErrorDialog("Please enter text to search!");
         }
@@ -148,10 +155,8 @@ public class InteractController {
      */
     @FXML
     void handleDownload(ActionEvent event) {
-        // get selected file
+        // get selected file, more can be picked while it downloads
         String selectedFile = getSelectedFile();
-        // disable download button
-        buttonDownload.setDisable(true);
         // if no file selected, show error dialog
         if (selectedFile == null) {
             showErrorDialog("No file has been selected to download");
@@ -164,23 +169,63 @@ public class InteractController {
      * Handles the pause/resume process.
      * 
      * This method handles the pause/resume process. It pauses or resumes the
-     * download process.
+     * transfer selected in the transfer list, upload or download, or all
+     * downloads when none is selected.
      * 
      * @param event The action event that triggered the method.
      */
     @FXML
     void handlePause(ActionEvent event) {
-        // if client is not null
-        if (client.pauseDownload) {
+        TransferProgress selected = transferListView.getSelectionModel().getSelectedItem();
+        if (selected != null) {
+            selected.setPaused(!selected.isPaused());
+            buttonPause.setText(selected.isPaused() ? "Resume" : "Pause");
+        } else if (client.pauseDownload) {
             buttonPause.setText("Pause");
-            client.pauseDownload = false;
+            client.setPaused(false);
         } else {
             // pause download
             buttonPause.setText("Resume");
-            client.pauseDownload = true;
+            client.setPaused(true);
+        }
+    }
+
+    /**
+     * Handles the stats request.
+     * 
+     * This method asks the server for its metrics. They are shown together
+     * with the client's own once the server answers.
+     * 
+     * @param event The action event that triggered the method.
+     */
+    @FXML
+    void handleStats(ActionEvent event) {
+        if (client != null) {
+            client.requestStats();
         }
     }
 
+    /**
+     * Shows the metrics of the client and of the server.
+     * 
+     * @param clientStats The client's metrics, one per line.
+     * @param serverStats The server's metrics, one per line.
+     */
+    public void showStats(String clientStats, String serverStats) {
+        Platform.runLater(() -> {
+            // a monospaced text area keeps the columns lined up
+            TextArea text = new TextArea("Client\n" + clientStats + "\nServer\n" + serverStats);
+            text.setEditable(false);
+            text.setStyle("-fx-font-family: monospace;");
+            text.setPrefSize(640, 420);
+            Alert alert = new Alert(Alert.AlertType.INFORMATION);
+            alert.setTitle("Stats");
+            alert.setHeaderText(null);
+            alert.getDialogPane().setContent(text);
+            alert.show();
+        });
+    }
+
     /**
      * Updates the file list view with the specified list of users.
      * 
@@ -193,24 +238,69 @@ public class InteractController {
     }
 
     /**
-     * Appends a message to the message area.
+     * Reports the end of a search.
      * 
-     * @param message The message to be appended.
+     * @param results  The number of files found.
+     * @param answered The number of peers that answered.
+     * @param asked    The number of peers that were asked.
+     * @param timedOut Whether some peers did not answer in time.
      */
-    public void updateProgressBarDownload(long bytesRead, long fileSize) {
-        // update the progress bar with the specified message
-        double progress = (double) bytesRead / fileSize;
-        final double clamped = Math.min(progress, 1.0);
-
-        progressDownload.setProgress(clamped);
+    public void searchFinished(int results, int answered, int asked, boolean timedOut) {
+        System.out.println("Search finished with " + results + " files, " + answered + " of " + asked + " peers answered");
+        if (results == 0) {
+            showDialog(timedOut ? "No files found, " + (asked - answered) + " peers did not answer in time"
+                    : "No files found");
+        }
     }
 
-    public void updateProgressBarUpload(long bytesRead, long fileSize) {
-        // update the progress bar with the specified message
-        double progress = (double) bytesRead / fileSize;
-        final double clamped = Math.min(progress, 1.0);
+    /**
+     * Starts sampling the progress of the client's transfers.
+     * 
+     * The transfers only update counters. This timer runs on the JavaFX thread
+     * at a fixed rate, so the controls are only touched there and at most once
+     * per frame however fast the transfers move.
+     */
+    private void startProgressTimer() {
+        progressTimer = new Timeline(
+                new KeyFrame(Duration.millis(Settings.PROGRESS_INTERVAL), e -> refreshProgress()));
+        progressTimer.setCycleCount(Animation.INDEFINITE);
+        progressTimer.play();
+    }
 
-        progressUpload.setProgress(clamped);
+    /**
+     * Shows one line per transfer and the combined progress of the downloads
+     * and of the uploads.
+     */
+    private void refreshProgress() {
+        if (client == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        ArrayList<TransferProgress> transfers = new ArrayList<>(client.getProgress());
+        long[] done = new long[2];
+        long[] total = new long[2];
+        for (TransferProgress transfer : transfers) {
+            transfer.sample(now);
+            int direction = transfer.isUpload() ? 1 : 0;
+            done[direction] += transfer.getDone();
+            total[direction] += transfer.getTotal();
+        }
+        // replacing the items loses the selection, so only do it when transfers come or go
+        if (!transfers.equals(transferListView.getItems())) {
+            transferListView.getItems().setAll(transfers);
+        } else {
+            transferListView.refresh();
+        }
+        TransferProgress selected = transferListView.getSelectionModel().getSelectedItem();
+        boolean paused = selected != null ? selected.isPaused() : client.pauseDownload;
+        buttonPause.setText(paused ? "Resume" : "Pause");
+        // the bars keep their last value once nothing is moving
+        if (total[0] > 0) {
+            progressDownload.setProgress((double) done[0] / total[0]);
+        }
+        if (total[1] > 0) {
+            progressUpload.setProgress((double) done[1] / total[1]);
+        }
     }
 
     /**
@@ -0,0 +1,192 @@
+package com.project5;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This class is used to build and read control channel messages. A message
+ * is an opcode byte followed by typed fields: numbers are unsigned varints
+ * and strings are a varint byte length followed by UTF-8, so file names may
+ * contain any character.
+ */
+public class Message {
+
+	private byte[] data;
+	private int length; // bytes written, when building
+	private int position; // next byte to read, when reading
+
+	/**
+	 * This is the constructor for the Message class
+	 * @param data
+	 * @param length
+	 */
+	private Message(byte[] data, int length) {
+		this.data = data;
+		this.length = length;
+		this.position = 1;
+	}
+
+	/**
+	 * This method is used to start building a message
+	 * @param opcode
+	 * @return
+	 */
+	public static Message of(byte opcode) {
+		Message message = new Message(new byte[64], 0);
+		message.putByte(opcode);
+		return message;
+	}
+
+	/**
+	 * This method is used to read a received message
+	 * @param payload
+	 * @return
+	 * @throws IOException
+	 */
+	public static Message parse(byte[] payload) throws IOException {
+		if (payload.length == 0) {
+			throw new IOException("Empty message");
+		}
+		return new Message(payload, payload.length);
+	}
+
+	/**
+	 * This method is used to get the opcode of the message
+	 * @return
+	 */
+	public byte opcode() {
+		return data[0];
+	}
+
+	/**
+	 * This method is used to get the number of bytes in the message
+	 * @return
+	 */
+	public int size() {
+		return length;
+	}
+
+	/**
+	 * This method is used to get the encoded message
+	 * @return
+	 */
+	public byte[] toBytes() {
+		return length == data.length ? data : Arrays.copyOf(data, length);
+	}
+
+	// === Writing ===
+
+	public Message putByte(int value) {
+		ensure(1);
+		data[length++] = (byte) value;
+		return this;
+	}
+
+	public Message putLong(long value) {
+		ensure(10);
+		// 7 bits at a time, high bit set on every byte but the last
+		while ((value & ~0x7FL) != 0) {
+			data[length++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		data[length++] = (byte) value;
+		return this;
+	}
+
+	public Message putInt(int value) {
+		return putLong(value & 0xFFFFFFFFL);
+	}
+
+	public Message putString(String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		putInt(bytes.length);
+		return putBytes(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * This method is used to append raw bytes, such as the unread rest of
+	 * another message that is being relayed
+	 * @param bytes
+	 * @param offset
+	 * @param count
+	 * @return
+	 */
+	public Message putBytes(byte[] bytes, int offset, int count) {
+		ensure(count);
+		System.arraycopy(bytes, offset, data, length, count);
+		length += count;
+		return this;
+	}
+
+	/**
+	 * This method is used to append the unread rest of another message
+	 * @param other
+	 * @return
+	 */
+	public Message putRest(Message other) {
+		return putBytes(other.data, other.position, other.length - other.position);
+	}
+
+	/**
+	 * This method is used to grow the buffer for the next field
+	 * @param extra
+	 */
+	private void ensure(int extra) {
+		if (length + extra > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, length + extra));
+		}
+	}
+
+	// === Reading ===
+
+	public boolean hasRemaining() {
+		return position < length;
+	}
+
+	public int getByte() throws IOException {
+		if (position >= length) {
+			throw new IOException("Truncated message");
+		}
+		return data[position++] & 0xFF;
+	}
+
+	public long getLong() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = getByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed number");
+	}
+
+	public int getInt() throws IOException {
+		long value = getLong();
+		if (value > 0xFFFFFFFFL) {
+			throw new IOException("Malformed number");
+		}
+		return (int) value;
+	}
+
+	public byte[] getBytes(int count) throws IOException {
+		if (count < 0 || count > length - position) {
+			throw new IOException("Truncated message");
+		}
+		byte[] value = Arrays.copyOfRange(data, position, position + count);
+		position += count;
+		return value;
+	}
+
+	public String getString() throws IOException {
+		int count = getInt();
+		if (count < 0 || count > length - position) {
+			throw new IOException("Truncated message");
+		}
+		String value = new String(data, position, count, StandardCharsets.UTF_8);
+		position += count;
+		return value;
+	}
+}
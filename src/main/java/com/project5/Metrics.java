@@ -0,0 +1,308 @@
+package com.project5;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * This class is used to count what the server or a client does and how long
+ * it takes, cheaply enough to stay on under load. Counters, gauges and
+ * histograms are named once when the process starts. The hot paths only add
+ * to lock-free adders, the names are looked up when someone reads them. Every
+ * value is a JMX attribute of com.project5:type=Server or type=Client, and
+ * the whole set is also written as text for the STATS command.
+ */
+public class Metrics implements DynamicMBean {
+
+	private final String type;
+	private final LinkedHashMap<String, LongSupplier> values = new LinkedHashMap<>(); // counters and gauges, by name
+	private final LinkedHashMap<String, Histogram> histograms = new LinkedHashMap<>();
+
+	/**
+	 * This is the constructor for the Metrics class
+	 * @param type the type in the JMX name, Server or Client
+	 */
+	public Metrics(String type) {
+		this.type = type;
+	}
+
+	/**
+	 * This method is used to add a counter
+	 * @param name
+	 * @return
+	 */
+	public synchronized LongAdder counter(String name) {
+		LongAdder counter = new LongAdder();
+		values.put(name, counter::sum);
+		return counter;
+	}
+
+	/**
+	 * This method is used to add one counter per opcode, named after the
+	 * opcode, see count
+	 * @param prefix
+	 * @return the counters, indexed by opcode
+	 */
+	public synchronized LongAdder[] perOpcode(String prefix) {
+		LongAdder[] counters = new LongAdder[Protocol.count()];
+		for (byte opcode = 1; opcode < counters.length; opcode++) {
+			counters[opcode] = counter(prefix + "." + Protocol.name(opcode));
+		}
+		return counters;
+	}
+
+	/**
+	 * This method is used to count a message in the counter of its opcode
+	 * @param counters from perOpcode
+	 * @param opcode
+	 */
+	public static void count(LongAdder[] counters, byte opcode) {
+		if (opcode > 0 && opcode < counters.length) {
+			counters[opcode].increment();
+		}
+	}
+
+	/**
+	 * This method is used to add a value that is read when the metrics are,
+	 * replacing any earlier value of the same name
+	 * @param name
+	 * @param gauge
+	 */
+	public synchronized void gauge(String name, LongSupplier gauge) {
+		values.put(name, gauge);
+	}
+
+	/**
+	 * This method is used to add a histogram
+	 * @param name
+	 * @param unit of the recorded values, shown in the snapshot
+	 * @return
+	 */
+	public synchronized Histogram histogram(String name, String unit) {
+		Histogram histogram = new Histogram(unit);
+		histograms.put(name, histogram);
+		return histogram;
+	}
+
+	/**
+	 * This method is used to publish the metrics on the platform MBean
+	 * server, once, when the metrics setting is on
+	 */
+	public void register() {
+		if (!Settings.METRICS) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("com.project5:type=" + type));
+		} catch (InstanceAlreadyExistsException e) {
+			// registered by an earlier connection of this process
+		} catch (JMException e) {
+			System.out.println("Could not register the metrics: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * This method is used to write every metric as one line of text
+	 * @return
+	 */
+	public synchronized String snapshot() {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, LongSupplier> value : values.entrySet()) {
+			text.append(String.format("%-26s %d%n", value.getKey(), value.getValue().getAsLong()));
+		}
+		for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+			text.append(String.format("%-26s %s%n", histogram.getKey(), histogram.getValue()));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * This method is used to read every metric as JMX attributes, a
+	 * histogram as one attribute per statistic
+	 * @return attribute values by name
+	 */
+	private synchronized LinkedHashMap<String, Long> attributes() {
+		LinkedHashMap<String, Long> attributes = new LinkedHashMap<>();
+		for (Map.Entry<String, LongSupplier> value : values.entrySet()) {
+			attributes.put(value.getKey(), value.getValue().getAsLong());
+		}
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+			Histogram histogram = entry.getValue();
+			String name = entry.getKey();
+			attributes.put(name + ".count", histogram.count());
+			attributes.put(name + ".mean", histogram.mean());
+			attributes.put(name + ".p50", histogram.percentile(0.50));
+			attributes.put(name + ".p99", histogram.percentile(0.99));
+			attributes.put(name + ".max", histogram.max());
+		}
+		return attributes;
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Long value = attributes().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] names) {
+		LinkedHashMap<String, Long> attributes = attributes();
+		AttributeList list = new AttributeList();
+		for (String name : names) {
+			if (attributes.containsKey(name)) {
+				list.add(new Attribute(name, attributes.get(name)));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		// the metrics have attributes only
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> infos = new ArrayList<>();
+		for (String name : attributes().keySet()) {
+			infos.add(new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false));
+		}
+		return new MBeanInfo(Metrics.class.getName(), "Runtime metrics of the " + type.toLowerCase(),
+				infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+	}
+
+	/**
+	 * This class is used to keep the spread of a value, such as a latency,
+	 * in power of two buckets. Recording is a few atomic adds, so it can sit
+	 * on every message. Percentiles are the upper end of their bucket, which
+	 * is at most twice the real value.
+	 */
+	public static class Histogram {
+
+		private static final int BUCKETS = 64; // bucket i holds values below 2^i, bucket 0 holds 0
+
+		private final String unit;
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		/**
+		 * This is the constructor for the Histogram class
+		 * @param unit
+		 */
+		Histogram(String unit) {
+			this.unit = unit;
+		}
+
+		/**
+		 * This method is used to record a value
+		 * @param value never negative
+		 */
+		public void record(long value) {
+			value = Math.max(0, value);
+			buckets.incrementAndGet(Math.min(BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(value)));
+			count.increment();
+			sum.add(value);
+			max.accumulate(value);
+		}
+
+		/**
+		 * This method is used to record the microseconds since a start time
+		 * @param start System.nanoTime() at the start
+		 */
+		public void recordSince(long start) {
+			record((System.nanoTime() - start) / 1000);
+		}
+
+		/**
+		 * This method is used to get the number of values recorded
+		 * @return
+		 */
+		public long count() {
+			return count.sum();
+		}
+
+		/**
+		 * This method is used to get the mean of the values
+		 * @return
+		 */
+		public long mean() {
+			long values = count.sum();
+			return values == 0 ? 0 : sum.sum() / values;
+		}
+
+		/**
+		 * This method is used to get the largest value
+		 * @return
+		 */
+		public long max() {
+			return max.get();
+		}
+
+		/**
+		 * This method is used to get the value that a share of the values
+		 * are at or below
+		 * @param share between 0 and 1
+		 * @return
+		 */
+		public long percentile(double share) {
+			long[] counts = new long[BUCKETS];
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] = buckets.get(i);
+				total += counts[i];
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(share * total);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= Math.max(1, rank)) {
+					return Math.min(max(), i == 0 ? 0 : (1L << i) - 1);
+				}
+			}
+			return max();
+		}
+
+		@Override
+		public String toString() {
+			return "count " + count() + "  mean " + mean() + " " + unit + "  p50 " + percentile(0.50) + " " + unit
+					+ "  p99 " + percentile(0.99) + " " + unit + "  max " + max() + " " + unit;
+		}
+	}
+}
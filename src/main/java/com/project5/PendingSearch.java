@@ -0,0 +1,127 @@
+package com.project5;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks one search that the server has sent to the other clients. Results
+ * are relayed to the searcher as they arrive, until every asked client has
+ * answered or the deadline passes. Either way the searcher gets one
+ * SEARCH_DONE and nothing for the query after it.
+ */
+class PendingSearch {
+
+	// one daemon thread runs the deadlines of every search
+	private static final ScheduledExecutorService deadlines = Executors.newSingleThreadScheduledExecutor(task -> {
+		Thread thread = new Thread(task, "search-deadlines");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final ClientManager searcher;
+	private final int queryId;
+	private final Set<String> waiting; // clients that have not answered yet
+	private final int asked;
+	private final long started = System.nanoTime();
+	private boolean done = false;
+	private ScheduledFuture<?> deadline;
+
+	/**
+	 * Starts tracking a search
+	 *
+	 * @param searcher The client that searched
+	 * @param queryId  The searcher's id for the query
+	 * @param peers    The clients the search is sent to
+	 */
+	PendingSearch(ClientManager searcher, int queryId, Set<String> peers) {
+		this.searcher = searcher;
+		this.queryId = queryId;
+		this.waiting = new HashSet<>(peers);
+		this.asked = peers.size();
+	}
+
+	/**
+	 * Gets the searcher's id for the query
+	 *
+	 * @return The query id
+	 */
+	int queryId() {
+		return queryId;
+	}
+
+	/**
+	 * Starts the deadline, or finishes right away when nobody was asked
+	 *
+	 * @param millis The time the clients have to answer
+	 */
+	synchronized void start(long millis) {
+		if (waiting.isEmpty()) {
+			finish(false);
+		} else if (!done) {
+			deadline = deadlines.schedule(() -> finish(true), millis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Relays a batch of results, unless the search is over or the client
+	 * was never asked
+	 *
+	 * @param uploader The client that sent the results
+	 * @param results  The results, ready to send to the searcher
+	 */
+	synchronized void relay(String uploader, Message results) {
+		if (!done && waiting.contains(uploader)) {
+			searcher.sendMessage(results);
+			ClientManager.bytesRelayed.add(results.size());
+		}
+	}
+
+	/**
+	 * Records that a client sent all its results, or disconnected
+	 *
+	 * @param uploader The client that is done
+	 */
+	synchronized void answered(String uploader) {
+		if (waiting.remove(uploader) && waiting.isEmpty()) {
+			finish(false);
+		}
+	}
+
+	/**
+	 * Ends the search and tells the searcher how many clients answered
+	 *
+	 * @param timedOut Whether the deadline passed first
+	 */
+	synchronized void finish(boolean timedOut) {
+		if (done) {
+			return;
+		}
+		done = true;
+		if (deadline != null) {
+			deadline.cancel(false);
+		}
+		searcher.searchFinished(this);
+		if (asked > 0) {
+			ClientManager.searchFanOut.recordSince(started);
+		}
+		if (timedOut) {
+			ClientManager.searchTimeouts.increment();
+		}
+		searcher.sendMessage(Message.of(Protocol.SEARCH_DONE).putInt(queryId).putInt(asked - waiting.size())
+				.putInt(asked).putByte(timedOut ? 1 : 0));
+	}
+
+	/**
+	 * Ends the search without telling anyone, when the searcher left
+	 */
+	synchronized void cancel() {
+		done = true;
+		if (deadline != null) {
+			deadline.cancel(false);
+		}
+	}
+}
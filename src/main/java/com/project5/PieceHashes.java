@@ -0,0 +1,274 @@
+package com.project5;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * This class is used to describe the content of a file as a SHA-256 hash per
+ * piece and a Merkle root over those hashes. The uploader hashes the pieces of
+ * a file in parallel, and the downloader checks every piece against its hash
+ * as it arrives so a corrupt piece is fetched again on its own. The hashes of
+ * shared files are kept in the HashManifest.
+ */
+public class PieceHashes {
+
+	public static final int HASH_LENGTH = 32; // bytes of a SHA-256 hash
+	static final int MIN_PIECE_SIZE = 16 * 1024; // smallest piece size a peer may ask for
+
+	private final long fileSize;
+	private final int pieceSize;
+	private final long lastModified; // of the file the hashes were computed from, 0 when received
+	private final byte[][] hashes;
+	private final byte[] root;
+
+	/**
+	 * This is the constructor for the PieceHashes class
+	 * @param fileSize
+	 * @param pieceSize
+	 * @param lastModified
+	 * @param hashes
+	 */
+	PieceHashes(long fileSize, int pieceSize, long lastModified, byte[][] hashes) {
+		this.fileSize = fileSize;
+		this.pieceSize = pieceSize;
+		this.lastModified = lastModified;
+		this.hashes = hashes;
+		this.root = merkleRoot(hashes);
+	}
+
+	/**
+	 * This method is used to hash every piece of a file, spread over all cores
+	 * @param file
+	 * @param pieceSize
+	 * @return
+	 * @throws IOException
+	 */
+	public static PieceHashes compute(File file, int pieceSize) throws IOException {
+		long lastModified = file.lastModified();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long fileSize = channel.size();
+			int count = pieceCount(fileSize, pieceSize);
+			byte[][] hashes = new byte[count][];
+			try {
+				// positional reads let every worker read its own pieces from one channel
+				IntStream.range(0, count).parallel().forEach(piece -> {
+					long offset = (long) piece * pieceSize;
+					try {
+						hashes[piece] = hashRange(channel, offset, Math.min(pieceSize, fileSize - offset));
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			return new PieceHashes(fileSize, pieceSize, lastModified, hashes);
+		}
+	}
+
+	/**
+	 * This method is used to hash one byte range of a file
+	 * @param channel
+	 * @param offset
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	private static byte[] hashRange(FileChannel channel, long offset, long length) throws IOException {
+		MessageDigest digest = newDigest();
+		ByteBuffer buffer = BufferPool.acquire();
+		try {
+			long position = offset;
+			long end = offset + length;
+			while (position < end) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), end - position));
+				int read = channel.read(buffer, position);
+				if (read < 0) {
+					throw new IOException("File shrank while it was hashed");
+				}
+				buffer.flip();
+				digest.update(buffer);
+				position += read;
+			}
+			return digest.digest();
+		} finally {
+			BufferPool.release(buffer);
+		}
+	}
+
+	/**
+	 * This method is used to get a new SHA-256 digest
+	 * @return
+	 */
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * This method is used to get the number of pieces of a file
+	 * @param fileSize
+	 * @param pieceSize
+	 * @return
+	 */
+	public static int pieceCount(long fileSize, int pieceSize) {
+		return (int) Math.max(1, (fileSize + pieceSize - 1) / pieceSize);
+	}
+
+	/**
+	 * This method is used to check if a piece size asked for by a peer is
+	 * sensible for a file, and its hash list fits comfortably in one frame
+	 * @param fileSize
+	 * @param pieceSize
+	 * @return
+	 */
+	public static boolean validPieceSize(long fileSize, int pieceSize) {
+		if (pieceSize < MIN_PIECE_SIZE) {
+			return false;
+		}
+		long count = Math.max(1, (fileSize + pieceSize - 1) / pieceSize);
+		return count * HASH_LENGTH <= Frames.MAX_FRAME_SIZE / 2;
+	}
+
+	/**
+	 * This method is used to combine the piece hashes pairwise into a single
+	 * root, an odd hash is carried up to the next level as it is
+	 * @param leaves
+	 * @return
+	 */
+	public static byte[] merkleRoot(byte[][] leaves) {
+		byte[][] level = leaves;
+		while (level.length > 1) {
+			byte[][] parents = new byte[(level.length + 1) / 2][];
+			for (int i = 0; i < parents.length; i++) {
+				if (2 * i + 1 < level.length) {
+					MessageDigest digest = newDigest();
+					digest.update(level[2 * i]);
+					digest.update(level[2 * i + 1]);
+					parents[i] = digest.digest();
+				} else {
+					parents[i] = level[2 * i];
+				}
+			}
+			level = parents;
+		}
+		return level.length == 0 ? new byte[HASH_LENGTH] : level[0];
+	}
+
+	/**
+	 * This method is used to check if the hashes still describe a file, by
+	 * its size and modification time
+	 * @param file
+	 * @param pieceSize
+	 * @return
+	 */
+	public boolean describes(File file, int pieceSize) {
+		return this.pieceSize == pieceSize && fileSize == file.length() && lastModified == file.lastModified();
+	}
+
+	/**
+	 * This method is used to get the same hashes for a file written with
+	 * them, such as a verified download
+	 * @param lastModified
+	 * @return
+	 */
+	public PieceHashes forFile(long lastModified) {
+		return new PieceHashes(fileSize, pieceSize, lastModified, hashes);
+	}
+
+	/**
+	 * This method is used to check a received piece against its hash
+	 * @param piece
+	 * @param hash
+	 * @return
+	 */
+	public boolean matches(int piece, byte[] hash) {
+		return MessageDigest.isEqual(hashes[piece], hash);
+	}
+
+	/**
+	 * This method is used to check if two peers describe the same content
+	 * @param other
+	 * @return
+	 */
+	public boolean sameContent(PieceHashes other) {
+		return fileSize == other.fileSize && pieceSize == other.pieceSize && Arrays.equals(root, other.root);
+	}
+
+	/**
+	 * This method is used to add the hashes to a message
+	 * @param message
+	 * @return
+	 */
+	public Message writeTo(Message message) {
+		message.putLong(fileSize).putInt(pieceSize).putInt(hashes.length);
+		for (byte[] hash : hashes) {
+			message.putBytes(hash, 0, HASH_LENGTH);
+		}
+		return message;
+	}
+
+	/**
+	 * This method is used to read hashes written by writeTo
+	 * @param message
+	 * @return
+	 * @throws IOException
+	 */
+	public static PieceHashes readFrom(Message message) throws IOException {
+		long fileSize = message.getLong();
+		int pieceSize = message.getInt();
+		int count = message.getInt();
+		if (pieceSize <= 0 || count != pieceCount(fileSize, pieceSize)) {
+			throw new IOException("Hash list does not fit the file");
+		}
+		byte[][] hashes = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			hashes[i] = message.getBytes(HASH_LENGTH);
+		}
+		return new PieceHashes(fileSize, pieceSize, 0, hashes);
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public int getPieceSize() {
+		return pieceSize;
+	}
+
+	public int getPieceCount() {
+		return hashes.length;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public byte[] getHash(int piece) {
+		return hashes[piece];
+	}
+
+	/**
+	 * This method is used to get the Merkle root as hex, for logging
+	 * @return
+	 */
+	public String rootHex() {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : root) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+}
@@ -0,0 +1,194 @@
+package com.project5;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * This class is used to decide which piece of a file each peer should send
+ * next. Pieces are picked rarest-first, and once nothing is left to pick the
+ * slowest pieces in flight are handed to idle peers as well (endgame).
+ */
+public class PiecePicker {
+
+	private final int pieceCount;
+	private final BitSet done; // pieces that have been received
+	private final int[] availability; // number of peers that have each piece
+	private final int[] inFlight; // number of outstanding requests for each piece
+	private final HashMap<String, BitSet> peerPieces = new HashMap<>(); // pieces each peer has
+	private final Random random = new Random();
+
+	/**
+	 * This is the constructor for the PiecePicker class
+	 * @param pieceCount
+	 * @param done pieces that are already on disk
+	 */
+	public PiecePicker(int pieceCount, BitSet done) {
+		this.pieceCount = pieceCount;
+		this.done = done;
+		this.availability = new int[pieceCount];
+		this.inFlight = new int[pieceCount];
+	}
+
+	/**
+	 * This method is used to register the pieces a peer can send
+	 * @param peer
+	 * @param pieces
+	 */
+	public synchronized void addPeer(String peer, BitSet pieces) {
+		peerPieces.put(peer, pieces);
+		for (int i = pieces.nextSetBit(0); i >= 0 && i < pieceCount; i = pieces.nextSetBit(i + 1)) {
+			availability[i]++;
+		}
+	}
+
+	/**
+	 * This method is used to forget a peer that has stalled too often
+	 * @param peer
+	 */
+	public synchronized void removePeer(String peer) {
+		BitSet pieces = peerPieces.remove(peer);
+		if (pieces != null) {
+			for (int i = pieces.nextSetBit(0); i >= 0 && i < pieceCount; i = pieces.nextSetBit(i + 1)) {
+				availability[i]--;
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * This method is used to pick the next piece to request from a peer. The
+	 * rarest missing piece that is not already being fetched is preferred,
+	 * ties are broken at random so peers spread out over the file, or by
+	 * position when the file is read in order from a single peer.
+	 * @param peer
+	 * @param inOrder break ties by position instead of at random
+	 * @return the piece index, or -1 if the peer has nothing useful to send
+	 */
+	public synchronized int next(String peer, boolean inOrder) {
+		BitSet pieces = peerPieces.get(peer);
+		if (pieces == null) {
+			return -1;
+		}
+		int best = -1;
+		int bestAvailability = Integer.MAX_VALUE;
+		int ties = 0;
+		// pieces that are missing and nobody is fetching
+		for (int i = done.nextClearBit(0); i < pieceCount; i = done.nextClearBit(i + 1)) {
+			if (inFlight[i] > 0 || !pieces.get(i)) {
+				continue;
+			}
+			if (availability[i] < bestAvailability) {
+				best = i;
+				bestAvailability = availability[i];
+				ties = 1;
+			} else if (availability[i] == bestAvailability && !inOrder && random.nextInt(++ties) == 0) {
+				best = i;
+			}
+		}
+		if (best < 0) {
+			// endgame, help with a piece that only one peer is sending
+			int fewest = 2;
+			for (int i = done.nextClearBit(0); i < pieceCount; i = done.nextClearBit(i + 1)) {
+				if (pieces.get(i) && inFlight[i] < fewest) {
+					best = i;
+					fewest = inFlight[i];
+				}
+			}
+		}
+		if (best >= 0) {
+			inFlight[best]++;
+		}
+		return best;
+	}
+
+	/**
+	 * This method is used to grow a request into a run of consecutive pieces
+	 * after the picked one, so one connection can send them all
+	 * @param peer
+	 * @param first the piece returned by next
+	 * @param max the largest number of pieces in the run
+	 * @return the number of pieces in the run
+	 */
+	public synchronized int extend(String peer, int first, int max) {
+		BitSet pieces = peerPieces.get(peer);
+		int count = 1;
+		for (int i = first + 1; i < pieceCount && count < max; i++, count++) {
+			if (done.get(i) || inFlight[i] > 0 || pieces == null || !pieces.get(i)) {
+				break;
+			}
+			inFlight[i]++;
+		}
+		return count;
+	}
+
+	/**
+	 * This method is used to give back a piece whose request failed or was
+	 * cancelled
+	 * @param piece
+	 */
+	public synchronized void release(int piece) {
+		inFlight[piece]--;
+		notifyAll();
+	}
+
+	/**
+	 * This method is used to mark a piece as received
+	 * @param piece
+	 * @return false if another peer already delivered the piece
+	 */
+	public synchronized boolean complete(int piece) {
+		inFlight[piece]--;
+		if (done.get(piece)) {
+			return false;
+		}
+		done.set(piece);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * This method is used to ask for a piece again that was thought to be on
+	 * disk but did not match its hash
+	 * @param piece
+	 */
+	public synchronized void reset(int piece) {
+		done.clear(piece);
+		notifyAll();
+	}
+
+	/**
+	 * This method is used to check if a piece has been received
+	 * @param piece
+	 * @return
+	 */
+	public synchronized boolean isDone(int piece) {
+		return done.get(piece);
+	}
+
+	/**
+	 * This method is used to check if every piece has been received
+	 * @return
+	 */
+	public synchronized boolean isComplete() {
+		return done.cardinality() == pieceCount;
+	}
+
+	/**
+	 * This method is used to check if there is still a peer that can send the
+	 * missing pieces
+	 * @return
+	 */
+	public synchronized boolean hasPeers() {
+		return !peerPieces.isEmpty();
+	}
+
+	/**
+	 * This method is used to wait until a piece finishes or a peer leaves
+	 * @param millis
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitChange(long millis) throws InterruptedException {
+		wait(millis);
+	}
+}
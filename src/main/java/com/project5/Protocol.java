@@ -0,0 +1,72 @@
+package com.project5;
+
+/**
+ * This class is used to hold the opcodes of the control channel. Every
+ * message starts with one opcode byte followed by the typed fields listed
+ * here, see Message for how fields are encoded.
+ */
+public class Protocol {
+
+	// version sent in front of the client's public key, bumped on any wire change
+	public static final byte VERSION = 7;
+
+	// client -> server: username
+	public static final byte LOGIN = 1;
+	// server -> client: catalog flag, 1 when the server wants the file list
+	public static final byte LOGIN_OK = 2;
+	// server -> client: no fields
+	public static final byte LOGIN_TAKEN = 3;
+	// both ways: no fields
+	public static final byte DISCONNECT = 4;
+	// client -> server: query id, deadline in milliseconds, text
+	// server -> client: searcher, query id, text
+	public static final byte SEARCH = 5;
+	// client -> server: searcher, query id, then (size, name) until the end
+	// server -> client: uploader, query id, then (size, name) until the end
+	public static final byte RESULT = 6;
+	// client -> server: uploader, file name, address, port, key, offset, length, files shared, codecs
+	// server -> client: downloader, file name, address, port, key, offset, length, files shared, codecs
+	// codecs are the DataChannel.CODEC_ bits the downloader can decode, or will send a signature for
+	public static final byte DOWNLOAD = 7;
+	// client -> server: (size, name) until the end, shared files added or changed
+	public static final byte CATALOG_ADD = 8;
+	// client -> server: name until the end, shared files removed
+	public static final byte CATALOG_REMOVE = 9;
+	// client -> server: searcher, query id, after the last result
+	// server -> client: query id, clients answered, clients asked, timed out flag
+	public static final byte SEARCH_DONE = 10;
+	// client -> server: uploader, file name, piece size
+	// server -> client: downloader, file name, piece size
+	public static final byte HASH_REQUEST = 11;
+	// client -> server: downloader, file name, then the hashes, see PieceHashes.writeTo
+	// server -> client: uploader, file name, then the hashes
+	// the hashes are left out when the uploader cannot read the file
+	public static final byte HASH_LIST = 12;
+	// client -> server: downloader, key, place in the upload queue
+	// server -> client: uploader, key, place in the upload queue
+	public static final byte UPLOAD_QUEUED = 13;
+	// client -> server: no fields
+	// server -> client: the server's metrics as text, see Metrics
+	public static final byte STATS = 14;
+
+	private static final String[] NAMES = { "UNKNOWN", "LOGIN", "LOGIN_OK", "LOGIN_TAKEN", "DISCONNECT", "SEARCH",
+			"RESULT", "DOWNLOAD", "CATALOG_ADD", "CATALOG_REMOVE", "SEARCH_DONE", "HASH_REQUEST", "HASH_LIST",
+			"UPLOAD_QUEUED", "STATS" };
+
+	/**
+	 * This method is used to get the name of an opcode for logging
+	 * @param opcode
+	 * @return
+	 */
+	public static String name(byte opcode) {
+		return opcode > 0 && opcode < NAMES.length ? NAMES[opcode] : NAMES[0] + "(" + opcode + ")";
+	}
+
+	/**
+	 * This method is used to get one more than the highest opcode
+	 * @return
+	 */
+	public static int count() {
+		return NAMES.length;
+	}
+}
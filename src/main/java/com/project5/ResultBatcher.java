@@ -0,0 +1,79 @@
+package com.project5;
+
+import java.util.function.Consumer;
+
+/**
+ * This class is used to send file lists in a few large messages instead of
+ * one message per file. It batches search results for a searcher as well as
+ * the file list a client publishes to the server's catalog. A batch is sent
+ * when it reaches the size limit, and whatever is left is sent when the list
+ * is done.
+ */
+public class ResultBatcher {
+
+	private final Consumer<Message> sender;
+	private final Message header; // opcode and fields every batch starts with
+	private Message batch;
+	private int count = 0; // files in the current batch
+
+	/**
+	 * This is the constructor for the ResultBatcher class, for search results
+	 * @param client
+	 * @param searcher the peer the results go to
+	 * @param queryId the searcher's id for the query
+	 */
+	public ResultBatcher(Client client, String searcher, int queryId) {
+		this(client::sendMessage, Message.of(Protocol.RESULT).putString(searcher).putInt(queryId));
+	}
+
+	/**
+	 * This is the constructor for the ResultBatcher class
+	 * @param sender sends a full batch
+	 * @param header the opcode and fields in front of the files
+	 */
+	public ResultBatcher(Consumer<Message> sender, Message header) {
+		this.sender = sender;
+		this.header = header;
+		this.batch = newBatch();
+	}
+
+	/**
+	 * This method is used to add one result
+	 * @param file
+	 */
+	public void add(FileIndex.Entry file) {
+		add(file.name, file.size);
+	}
+
+	/**
+	 * This method is used to add one file by name and size
+	 * @param name
+	 * @param size
+	 */
+	public void add(String name, long size) {
+		batch.putLong(size).putString(name);
+		count++;
+		if (batch.size() >= Settings.RESULT_BATCH_SIZE) {
+			flush();
+		}
+	}
+
+	/**
+	 * This method is used to send the files that are not sent yet
+	 */
+	public void flush() {
+		if (count > 0) {
+			sender.accept(batch);
+			batch = newBatch();
+			count = 0;
+		}
+	}
+
+	/**
+	 * This method is used to start an empty batch
+	 * @return
+	 */
+	private Message newBatch() {
+		return Message.of(header.opcode()).putRest(header);
+	}
+}
@@ -0,0 +1,134 @@
+package com.project5;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * This class is used to encrypt and decrypt control messages with the AES-GCM
+ * session key agreed during the public key exchange. Every nonce is the
+ * sender's direction followed by its message counter, and a message is only
+ * accepted with the peer's direction and a counter above the last one
+ * accepted, so a captured message can neither be replayed nor reflected back
+ * to its sender. Senders that run on several threads use encryptTo, so
+ * messages go out in the order of their nonces.
+ */
+public class SessionCipher {
+
+	private static final int KEY_SIZE = 256; // AES key size in bits
+	private static final int IV_LENGTH = 12; // GCM nonce length in bytes
+	private static final int TAG_LENGTH = 128; // GCM authentication tag length in bits
+
+	private final SecretKey key;
+	private final Cipher encryptCipher;
+	private final Cipher decryptCipher;
+	private final int direction; // nonce prefix, so both ends never share a nonce
+	private long counter = 0; // nonce counter for this direction
+	private long received = -1; // counter of the last message accepted from the peer
+
+	/**
+	 * This is the constructor for the SessionCipher class
+	 * @param encodedKey the raw AES key
+	 * @param initiator true on the side that generated the key
+	 * @throws GeneralSecurityException
+	 */
+	public SessionCipher(byte[] encodedKey, boolean initiator) throws GeneralSecurityException {
+		this.key = new SecretKeySpec(encodedKey, "AES");
+		this.encryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
+		this.decryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
+		this.direction = initiator ? 1 : 2;
+	}
+
+	/**
+	 * This method is used to generate a new random session key
+	 * @return the raw AES key
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static byte[] generateKey() throws NoSuchAlgorithmException {
+		KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+		keyGenerator.init(KEY_SIZE);
+		return keyGenerator.generateKey().getEncoded();
+	}
+
+	/**
+	 * This method is used to encrypt a message, the nonce is prepended to the
+	 * ciphertext
+	 * @param data
+	 * @return
+	 * @throws GeneralSecurityException
+	 */
+	public byte[] encrypt(byte[] data) throws GeneralSecurityException {
+		synchronized (encryptCipher) {
+			// build a unique nonce from the direction and the message counter
+			byte[] iv = ByteBuffer.allocate(IV_LENGTH).putInt(direction).putLong(counter++).array();
+			encryptCipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+			byte[] encrypted = new byte[IV_LENGTH + encryptCipher.getOutputSize(data.length)];
+			System.arraycopy(iv, 0, encrypted, 0, IV_LENGTH);
+			encryptCipher.doFinal(data, 0, data.length, encrypted, IV_LENGTH);
+			return encrypted;
+		}
+	}
+
+	/**
+	 * This method is used to encrypt a message and hand it to the connection
+	 * in one step. Taking the nonce and writing the message under one lock
+	 * keeps a later nonce from overtaking an earlier one on the wire, which
+	 * the peer would reject as a replay.
+	 * @param data
+	 * @param writer writes or queues the encrypted message
+	 * @throws GeneralSecurityException
+	 * @throws IOException
+	 */
+	public void encryptTo(byte[] data, FrameWriter writer) throws GeneralSecurityException, IOException {
+		synchronized (encryptCipher) {
+			writer.write(encrypt(data));
+		}
+	}
+
+	/**
+	 * This method is used to decrypt and authenticate a message
+	 * @param encryptedData
+	 * @return
+	 * @throws GeneralSecurityException
+	 */
+	public byte[] decrypt(byte[] encryptedData) throws GeneralSecurityException {
+		if (encryptedData.length < IV_LENGTH) {
+			throw new GeneralSecurityException("Message shorter than its nonce");
+		}
+		synchronized (decryptCipher) {
+			// the nonce is the first bytes of the message, it must come from the peer and be new
+			ByteBuffer iv = ByteBuffer.wrap(encryptedData, 0, IV_LENGTH);
+			int prefix = iv.getInt();
+			long sequence = iv.getLong();
+			if (prefix != 3 - direction || sequence <= received) {
+				throw new GeneralSecurityException("Replayed or reflected message");
+			}
+			decryptCipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, encryptedData, 0, IV_LENGTH));
+			byte[] data = decryptCipher.doFinal(encryptedData, IV_LENGTH, encryptedData.length - IV_LENGTH);
+			// only an authenticated message moves the window
+			received = sequence;
+			return data;
+		}
+	}
+
+	/**
+	 * This interface is used to pass an encrypted message on to the
+	 * connection
+	 */
+	public interface FrameWriter {
+
+		/**
+		 * This method is used to write or queue one encrypted message
+		 * @param frame
+		 * @throws IOException
+		 */
+		void write(byte[] frame) throws IOException;
+	}
+}
@@ -0,0 +1,126 @@
+package com.project5;
+
+/**
+ * This class is used to hold the tunable settings of the client and server.
+ * Each setting can be overridden with a system property, e.g.
+ * -Dproject5.zeroCopyUpload=false
+ */
+public class Settings {
+
+	// send uploads with FileChannel.transferTo when the data channel is not transformed
+	public static final boolean ZERO_COPY_UPLOAD = getBoolean("zeroCopyUpload", true);
+
+	// size of the pooled direct buffers used when copying file data
+	public static final int BUFFER_SIZE = getInt("bufferSize", 64 * 1024);
+
+	// maximum number of idle buffers kept in the pool
+	public static final int BUFFER_POOL_SIZE = getInt("bufferPoolSize", 32);
+
+	// download from every peer that returned the same file at once
+	public static final boolean SWARM_DOWNLOAD = getBoolean("swarmDownload", true);
+
+	// size of the pieces a swarm download is split into
+	public static final int PIECE_SIZE = getInt("pieceSize", 1024 * 1024);
+
+	// number of pieces requested from each peer at the same time
+	public static final int SWARM_REQUESTS_PER_PEER = getInt("swarmRequestsPerPeer", 2);
+
+	// milliseconds without data before a piece request counts as stalled
+	public static final int STALL_TIMEOUT = getInt("stallTimeout", 5000);
+
+	// stalls after which a peer is dropped from a swarm
+	public static final int MAX_STALLS = getInt("maxStalls", 3);
+
+	// serve clients from a few selector threads instead of one thread per client
+	public static final boolean SERVER_EVENT_LOOP = getBoolean("serverEventLoop", false);
+
+	// number of selector threads used by the server event loop
+	public static final int SELECTOR_THREADS = getInt("selectorThreads", Runtime.getRuntime().availableProcessors());
+
+	// bytes the server event loop queues for a client that does not read them before it drops the client
+	public static final int MAX_QUEUED_BYTES = getInt("maxQueuedBytes", 4 * Frames.MAX_FRAME_SIZE);
+
+	// run sessions and transfers on virtual threads when the runtime supports them
+	public static final boolean VIRTUAL_THREADS = getBoolean("virtualThreads", true);
+
+	// most uploads and hashing tasks for peers a client runs at the same time
+	public static final int MAX_TRANSFERS = getInt("maxTransfers", 32);
+
+	// bytes of search results sent in one message
+	public static final int RESULT_BATCH_SIZE = getInt("resultBatchSize", 32 * 1024);
+
+	// answer searches from a catalog the clients publish to the server, instead of asking every client
+	public static final boolean SERVER_CATALOG = getBoolean("serverCatalog", false);
+
+	// milliseconds a search waits for the other clients before it is reported as timed out
+	public static final int SEARCH_TIMEOUT = getInt("searchTimeout", 3000);
+
+	// milliseconds a download waits for the piece hashes before it goes ahead without them
+	public static final int HASH_TIMEOUT = getInt("hashTimeout", 30000);
+
+	// kilobytes per second for all uploads together, 0 for no limit
+	public static final int UPLOAD_LIMIT = getInt("uploadLimit", 0);
+
+	// kilobytes per second for all downloads together, 0 for no limit
+	public static final int DOWNLOAD_LIMIT = getInt("downloadLimit", 0);
+
+	// kilobytes per second for any single upload or download connection, 0 for no limit
+	public static final int TRANSFER_LIMIT = getInt("transferLimit", 0);
+
+	// kilobytes per second of the upload and download limits kept free for the control channel
+	public static final int CONTROL_RESERVE = getInt("controlReserve", 64);
+
+	// downloads that run at the same time, the others wait in a queue
+	public static final int MAX_DOWNLOADS = getInt("maxDownloads", 3);
+
+	// uploads that run at the same time, the others wait in a queue
+	public static final int UPLOAD_SLOTS = getInt("uploadSlots", 4);
+
+	// bytes of the send and receive buffers of data connections, 0 to let the system size them
+	public static final int SOCKET_BUFFER = getInt("socketBuffer", 0);
+
+	// offer and use Deflate compression on data connections
+	public static final boolean COMPRESSION = getBoolean("compression", true);
+
+	// Deflate level of compressed chunks, 1 is fastest
+	public static final int COMPRESSION_LEVEL = getInt("compressionLevel", 1);
+
+	// kilobytes per second of file data above which an upload stops compressing
+	public static final int COMPRESS_BELOW = getInt("compressBelow", 32 * 1024);
+
+	// send only the difference to an older copy of a file the downloader already has
+	public static final boolean DELTA_TRANSFER = getBoolean("deltaTransfer", true);
+
+	// milliseconds between refreshes of the transfer progress in the interface
+	public static final int PROGRESS_INTERVAL = getInt("progressInterval", 100);
+
+	// publish the runtime metrics over JMX, the STATS command works either way
+	public static final boolean METRICS = getBoolean("metrics", true);
+
+	/**
+	 * This method is used to read a boolean setting
+	 * @param name
+	 * @param defaultValue
+	 * @return
+	 */
+	private static boolean getBoolean(String name, boolean defaultValue) {
+		String value = System.getProperty("project5." + name);
+		return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+	}
+
+	/**
+	 * This method is used to read an integer setting
+	 * @param name
+	 * @param defaultValue
+	 * @return
+	 */
+	private static int getInt(String name, int defaultValue) {
+		String value = System.getProperty("project5." + name);
+		try {
+			return value == null ? defaultValue : Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid value for project5." + name + ": " + value);
+			return defaultValue;
+		}
+	}
+}
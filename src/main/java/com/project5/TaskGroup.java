@@ -0,0 +1,106 @@
+package com.project5;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * This class is used to run a group of related tasks, such as the transfers
+ * of a client, with an optional cap on how many run at once. Shutting the
+ * group down interrupts its tasks and closes the sockets and files they
+ * registered, since blocking socket I/O does not react to interrupts.
+ */
+public class TaskGroup {
+
+	private final String name;
+	private final Semaphore permits; // null when the group is not capped
+	private final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<>());
+	private final ConcurrentHashMap<Closeable, Thread> resources = new ConcurrentHashMap<>(); // resource -> task thread
+	private volatile boolean shutdown = false;
+
+	/**
+	 * This is the constructor for the TaskGroup class
+	 * @param name prefix of the thread names
+	 * @param maxConcurrent the most tasks running at once, 0 for no cap
+	 */
+	public TaskGroup(String name, int maxConcurrent) {
+		this.name = name;
+		this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent, true) : null;
+	}
+
+	/**
+	 * This method is used to start a task. When the group is at its cap the
+	 * task waits for a running one to finish.
+	 * @param taskName
+	 * @param task
+	 */
+	public void start(String taskName, Runnable task) {
+		if (shutdown) {
+			return;
+		}
+		Workers.start(name + "-" + taskName, () -> {
+			Thread current = Thread.currentThread();
+			threads.add(current);
+			boolean acquired = false;
+			try {
+				if (permits != null) {
+					permits.acquire();
+					acquired = true;
+				}
+				if (!shutdown) {
+					task.run();
+				}
+			} catch (InterruptedException e) {
+				// the group was shut down while the task was waiting
+			} finally {
+				if (acquired) {
+					permits.release();
+				}
+				threads.remove(current);
+				// forget the resources of the finished task
+				resources.values().removeIf(owner -> owner == current);
+			}
+		});
+	}
+
+	/**
+	 * This method is used to register a socket or file that the current task
+	 * is blocked on, so that shutdown can close it. It is forgotten when the
+	 * task ends.
+	 * @param resource
+	 */
+	public void track(Closeable resource) {
+		resources.put(resource, Thread.currentThread());
+		if (shutdown) {
+			close(resource);
+		}
+	}
+
+	/**
+	 * This method is used to stop every task of the group
+	 */
+	public void shutdown() {
+		shutdown = true;
+		for (Closeable resource : resources.keySet()) {
+			close(resource);
+		}
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * This method is used to close a resource, ignoring errors
+	 * @param resource
+	 */
+	private static void close(Closeable resource) {
+		try {
+			resource.close();
+		} catch (IOException e) {
+			// already closed
+		}
+	}
+}
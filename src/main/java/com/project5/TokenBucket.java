@@ -0,0 +1,70 @@
+package com.project5;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class is used to limit a byte rate. Tokens are added at the rate up
+ * to a small burst, and a transfer takes one token per byte before it sends
+ * or after it receives. Waiting transfers are served in arrival order, so
+ * transfers that share a bucket share its rate evenly.
+ */
+public class TokenBucket {
+
+	private final long rate; // bytes per second, 0 for no limit
+	private final long capacity; // largest burst
+	private final ReentrantLock lock = new ReentrantLock(true); // fair, waiters take turns
+	private double tokens;
+	private long lastRefill = System.nanoTime();
+
+	/**
+	 * This is the constructor for the TokenBucket class
+	 * @param rate bytes per second, 0 or less for no limit
+	 */
+	public TokenBucket(long rate) {
+		this.rate = Math.max(0, rate);
+		// a quarter second of traffic, and at least one chunk
+		this.capacity = Math.max(this.rate / 4, Settings.BUFFER_SIZE);
+		this.tokens = capacity;
+	}
+
+	/**
+	 * This method is used to check if the bucket limits anything
+	 * @return
+	 */
+	public boolean isLimited() {
+		return rate > 0;
+	}
+
+	/**
+	 * This method is used to take tokens for a number of bytes, waiting until
+	 * the rate allows them. Tokens may go negative by one chunk, the next
+	 * caller then waits for the debt to be paid.
+	 * @param bytes
+	 * @throws InterruptedIOException if the transfer is stopped while it waits
+	 */
+	public void acquire(long bytes) throws InterruptedIOException {
+		if (rate <= 0) {
+			return;
+		}
+		try {
+			lock.lockInterruptibly();
+			try {
+				long now = System.nanoTime();
+				tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+				lastRefill = now;
+				tokens -= bytes;
+				if (tokens < 0) {
+					// holding the lock while waiting keeps later callers in line
+					TimeUnit.NANOSECONDS.sleep((long) (-tokens * 1e9 / rate));
+				}
+			} finally {
+				lock.unlock();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Transfer stopped");
+		}
+	}
+}
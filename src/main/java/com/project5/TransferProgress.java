@@ -0,0 +1,236 @@
+package com.project5;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class is used to publish the progress of one upload or download. The
+ * transfer threads only add to lock-free counters. The user interface samples
+ * the counters on its own timer and works out the throughput and the time
+ * left there, so the copy loops never wait on the interface. The interface
+ * also pauses and resumes a single transfer through it.
+ */
+public class TransferProgress {
+
+	private static final double SMOOTHING = 2.0; // seconds over which the throughput is averaged
+
+	private final boolean upload;
+	private final String name;
+	private final long total; // bytes of the whole transfer
+	private final LongAdder moved = new LongAdder(); // bytes over the wire, for the throughput
+	private final AtomicLong done = new AtomicLong(); // bytes finished, for the percentage
+	private volatile String status; // shown instead of the throughput, null while moving data
+	private volatile boolean paused = false;
+	private volatile Runnable onResume; // restarts the transfer once it is resumed
+	private volatile long started = 0; // System.nanoTime() of the first bytes, for the average throughput
+
+	// only touched by the sampler
+	private long lastMoved = -1;
+	private long lastSample;
+	private double rate; // bytes per second
+	private volatile String line = ""; // the last sample, shown in the transfer list
+
+	/**
+	 * This is the constructor for the TransferProgress class
+	 * @param upload true for an upload, false for a download
+	 * @param name shown in the transfer list
+	 * @param total
+	 */
+	public TransferProgress(boolean upload, String name, long total) {
+		this.upload = upload;
+		this.name = name;
+		this.total = total;
+	}
+
+	/**
+	 * This method is used to count bytes sent or received
+	 * @param bytes
+	 */
+	public void moved(long bytes) {
+		if (started == 0) {
+			started = System.nanoTime();
+		}
+		moved.add(bytes);
+		(upload ? Client.bytesUp : Client.bytesDown).add(bytes);
+	}
+
+	/**
+	 * This method is used to set how many bytes are finished, never going back
+	 * @param bytes
+	 */
+	public void setDone(long bytes) {
+		done.accumulateAndGet(bytes, Math::max);
+	}
+
+	/**
+	 * This method is used to show a state instead of the throughput, such as
+	 * waiting in a queue
+	 * @param status null to show the throughput again
+	 */
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	/**
+	 * This method is used to pause or resume the transfer. The transfer
+	 * checks the flag between chunks and stops on its own.
+	 * @param paused
+	 */
+	public void setPaused(boolean paused) {
+		synchronized (this) {
+			this.paused = paused;
+			notifyAll();
+		}
+		Runnable resume = onResume;
+		if (!paused && resume != null) {
+			resume.run();
+		}
+	}
+
+	/**
+	 * This method is used to check if the transfer is paused
+	 * @return
+	 */
+	public boolean isPaused() {
+		return paused;
+	}
+
+	/**
+	 * This method is used to wait while the transfer is paused
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitResume() throws InterruptedException {
+		while (paused) {
+			wait();
+		}
+	}
+
+	/**
+	 * This method is used to set what restarts the transfer when it is resumed
+	 * @param onResume
+	 */
+	public void setOnResume(Runnable onResume) {
+		this.onResume = onResume;
+	}
+
+	/**
+	 * This method is used to check if the transfer is moving data, not
+	 * waiting, paused or finished
+	 * @return
+	 */
+	public boolean isActive() {
+		return !paused && status == null && getDone() < total;
+	}
+
+	/**
+	 * This method is used to get the average throughput since the first
+	 * bytes moved
+	 * @param now System.nanoTime()
+	 * @return bytes per second, or -1 if nothing moved yet
+	 */
+	public long averageRate(long now) {
+		long first = started;
+		if (first == 0 || now <= first) {
+			return -1;
+		}
+		return (long) (moved.sum() / ((now - first) / 1e9));
+	}
+
+	/**
+	 * This method is used to check if the transfer is an upload
+	 * @return
+	 */
+	public boolean isUpload() {
+		return upload;
+	}
+
+	/**
+	 * This method is used to get the bytes of the whole transfer
+	 * @return
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * This method is used to get the bytes finished so far
+	 * @return
+	 */
+	public long getDone() {
+		return Math.min(done.get(), total);
+	}
+
+	/**
+	 * This method is used to sample the counters and describe the transfer,
+	 * from one thread at a time
+	 * @param now System.nanoTime() of this sample
+	 * @return one line for the transfer list
+	 */
+	public String sample(long now) {
+		long bytes = moved.sum();
+		if (lastMoved >= 0) {
+			double seconds = (now - lastSample) / 1e9;
+			if (seconds > 0) {
+				// average over a few seconds so the numbers do not jump every frame
+				double current = (bytes - lastMoved) / seconds;
+				double weight = rate == 0 ? 1 : seconds / (seconds + SMOOTHING);
+				rate += (current - rate) * weight;
+			}
+		}
+		lastMoved = bytes;
+		lastSample = now;
+
+		long finished = getDone();
+		int percent = total > 0 ? (int) (finished * 100 / total) : 100;
+		StringBuilder line = new StringBuilder(upload ? "Up " : "Down ").append(name).append("  ").append(percent)
+				.append('%');
+		String current = paused ? "paused" : status;
+		if (current != null) {
+			line.append("  ").append(current);
+		} else {
+			line.append("  ").append(formatBytes((long) rate)).append("/s");
+			if (rate >= 1 && finished < total) {
+				line.append("  ").append(formatTime((long) ((total - finished) / rate))).append(" left");
+			}
+		}
+		this.line = line.toString();
+		return this.line;
+	}
+
+	@Override
+	public String toString() {
+		return line;
+	}
+
+	/**
+	 * This method is used to write a byte count with a unit
+	 * @param bytes
+	 * @return
+	 */
+	static String formatBytes(long bytes) {
+		if (bytes < 1024) {
+			return bytes + " B";
+		}
+		String units = "KMGT";
+		double value = bytes;
+		int unit = -1;
+		while (value >= 1024 && unit < units.length() - 1) {
+			value /= 1024;
+			unit++;
+		}
+		return String.format("%.1f %sB", value, units.charAt(unit));
+	}
+
+	/**
+	 * This method is used to write a number of seconds as h:mm:ss or m:ss
+	 * @param seconds
+	 * @return
+	 */
+	static String formatTime(long seconds) {
+		long hours = seconds / 3600;
+		long minutes = seconds / 60 % 60;
+		long rest = seconds % 60;
+		return hours > 0 ? String.format("%d:%02d:%02d", hours, minutes, rest)
+				: String.format("%d:%02d", minutes, rest);
+	}
+}
@@ -0,0 +1,162 @@
+package com.project5;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+
+/**
+ * This class is used to remember which pieces of a download are already on
+ * disk, in a hidden sidecar file next to the download, so that an interrupted
+ * download can resume where it stopped. The download itself is written to a
+ * hidden part file that only gets the real name once it is complete.
+ */
+public class TransferState {
+
+	private static final int MAGIC = 0x50354450; // "P5DP"
+
+	private final Path path;
+	private final long fileSize;
+	private final int pieceSize;
+	private final BitSet done;
+	private boolean deleted = false; // set once the download is complete
+
+	/**
+	 * This is the constructor for the TransferState class
+	 * @param fileName
+	 * @param fileSize
+	 * @param pieceSize
+	 * @param done
+	 */
+	private TransferState(String fileName, long fileSize, int pieceSize, BitSet done) {
+		this.path = sidecarPath(fileName);
+		this.fileSize = fileSize;
+		this.pieceSize = pieceSize;
+		this.done = done;
+	}
+
+	/**
+	 * This method is used to get the sidecar file of a download
+	 * @param fileName
+	 * @return
+	 */
+	public static Path sidecarPath(String fileName) {
+		return Paths.get("localFiles", "." + fileName + ".progress");
+	}
+
+	/**
+	 * This method is used to get the hidden file a download is written to
+	 * until it is complete
+	 * @param fileName
+	 * @return
+	 */
+	public static Path partPath(String fileName) {
+		return Paths.get("localFiles", "." + fileName + ".part");
+	}
+
+	/**
+	 * This method is used to load the progress of an earlier attempt, or to
+	 * start from nothing if there is none or it belongs to a different file
+	 * @param fileName
+	 * @param fileSize
+	 * @param pieceSize
+	 * @return
+	 */
+	public static TransferState load(String fileName, long fileSize, int pieceSize) {
+		File sidecar = sidecarPath(fileName).toFile();
+		File target = partPath(fileName).toFile();
+		if (sidecar.exists() && target.exists()) {
+			try (DataInputStream input = new DataInputStream(new FileInputStream(sidecar))) {
+				// only resume if the earlier attempt was for the same file
+				if (input.readInt() == MAGIC && input.readLong() == fileSize && input.readInt() == pieceSize) {
+					byte[] bits = new byte[input.readInt()];
+					input.readFully(bits);
+					return new TransferState(fileName, fileSize, pieceSize, BitSet.valueOf(bits));
+				}
+			} catch (IOException e) {
+				System.out.println("Ignoring unreadable progress file for " + fileName);
+			}
+		}
+		return new TransferState(fileName, fileSize, pieceSize, new BitSet());
+	}
+
+	/**
+	 * This method is used to get the pieces already on disk
+	 * @return
+	 */
+	public synchronized BitSet getDone() {
+		return (BitSet) done.clone();
+	}
+
+	/**
+	 * This method is used to check if any piece is already on disk
+	 * @return
+	 */
+	public synchronized boolean isResuming() {
+		return !done.isEmpty();
+	}
+
+	/**
+	 * This method is used to record a piece as written and save the sidecar
+	 * @param piece
+	 */
+	public synchronized void markDone(int piece) {
+		done.set(piece);
+		if (!deleted) {
+			save();
+		}
+	}
+
+	/**
+	 * This method is used to forget a piece that turned out not to be valid
+	 * and save the sidecar
+	 * @param piece
+	 */
+	public synchronized void clear(int piece) {
+		done.clear(piece);
+		if (!deleted) {
+			save();
+		}
+	}
+
+	/**
+	 * This method is used to write the sidecar, through a temporary file so a
+	 * crash never leaves it half written
+	 */
+	private void save() {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream output = new DataOutputStream(bytes);
+			byte[] bits = done.toByteArray();
+			output.writeInt(MAGIC);
+			output.writeLong(fileSize);
+			output.writeInt(pieceSize);
+			output.writeInt(bits.length);
+			output.write(bits);
+			Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+			Files.write(temp, bytes.toByteArray());
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.out.println("Could not save progress: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * This method is used to remove the sidecar once the download is complete
+	 */
+	public synchronized void delete() {
+		deleted = true;
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			System.out.println("Could not remove progress file: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package com.project5;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class is used to find names that contain a search text without
+ * looking at every name. Each name is indexed under the three-character
+ * sequences (trigrams) it contains, a search only checks the names that share
+ * the least common trigram of the search text.
+ * @param <K> the key each name is stored under
+ */
+public class TrigramIndex<K> {
+
+	private final HashMap<K, String> names = new HashMap<>(); // key -> lower case name
+	private final HashMap<Long, HashSet<K>> postings = new HashMap<>(); // trigram -> keys whose name has it
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * This method is used to add a name, replacing the old name of the key
+	 * @param key
+	 * @param name
+	 */
+	public void put(K key, String name) {
+		String lower = name.toLowerCase(Locale.ROOT);
+		lock.writeLock().lock();
+		try {
+			String old = names.put(key, lower);
+			if (old != null) {
+				if (old.equals(lower)) {
+					return;
+				}
+				unindex(key, old);
+			}
+			for (long trigram : trigrams(lower)) {
+				HashSet<K> keys = postings.get(trigram);
+				if (keys == null) {
+					keys = new HashSet<>();
+					postings.put(trigram, keys);
+				}
+				keys.add(key);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * This method is used to remove a key and its name
+	 * @param key
+	 */
+	public void remove(K key) {
+		lock.writeLock().lock();
+		try {
+			String old = names.remove(key);
+			if (old != null) {
+				unindex(key, old);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * This method is used to remove every name
+	 */
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			names.clear();
+			postings.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * This method is used to find the keys whose name contains the text,
+	 * ignoring case
+	 * @param text
+	 * @return
+	 */
+	public List<K> search(String text) {
+		String lower = text.toLowerCase(Locale.ROOT);
+		ArrayList<K> matches = new ArrayList<>();
+		lock.readLock().lock();
+		try {
+			if (lower.length() < 3) {
+				// too short for a trigram, check every name
+				for (Map.Entry<K, String> entry : names.entrySet()) {
+					if (entry.getValue().contains(lower)) {
+						matches.add(entry.getKey());
+					}
+				}
+				return matches;
+			}
+			// only names with the rarest trigram of the text can match
+			HashSet<K> candidates = null;
+			for (long trigram : trigrams(lower)) {
+				HashSet<K> keys = postings.get(trigram);
+				if (keys == null) {
+					return matches;
+				}
+				if (candidates == null || keys.size() < candidates.size()) {
+					candidates = keys;
+				}
+			}
+			for (K key : candidates) {
+				if (names.get(key).contains(lower)) {
+					matches.add(key);
+				}
+			}
+			return matches;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * This method is used to get the number of names in the index
+	 * @return
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return names.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * This method is used to drop a key from the postings of its old name
+	 * @param key
+	 * @param name
+	 */
+	private void unindex(K key, String name) {
+		for (long trigram : trigrams(name)) {
+			HashSet<K> keys = postings.get(trigram);
+			if (keys != null) {
+				keys.remove(key);
+				if (keys.isEmpty()) {
+					postings.remove(trigram);
+				}
+			}
+		}
+	}
+
+	/**
+	 * This method is used to get the distinct trigrams of a name, each packed
+	 * into a long as three 16 bit characters
+	 * @param name
+	 * @return
+	 */
+	private static HashSet<Long> trigrams(String name) {
+		HashSet<Long> trigrams = new HashSet<>();
+		for (int i = 0; i + 3 <= name.length(); i++) {
+			trigrams.add(((long) name.charAt(i) << 32) | ((long) name.charAt(i + 1) << 16) | name.charAt(i + 2));
+		}
+		return trigrams;
+	}
+}
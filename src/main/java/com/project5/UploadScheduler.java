@@ -0,0 +1,250 @@
+package com.project5;
+
+import java.util.ArrayList;
+
+/**
+ * This class is used to limit the uploads a client runs at once. Requests
+ * beyond the free slots wait in a queue and every waiting downloader is told
+ * its place in line, now and then, so it knows the request is alive. Small
+ * ranges and downloaders that share files themselves go first, and a request
+ * moves forward the longer it waits so large ranges are never starved. An
+ * upload that is paused gives up its slot and connection, and waits for a
+ * slot again with what is left of its range once it is resumed.
+ */
+public class UploadScheduler {
+
+	private final Client client;
+	private final ArrayList<Upload> waiting = new ArrayList<>();
+	private final ArrayList<Upload> paused = new ArrayList<>(); // uploads paused part way, holding no slot
+	private int active = 0; // uploads holding a slot
+	private volatile Thread reporter;
+	private volatile boolean closed = false;
+
+	/**
+	 * This is the constructor for the UploadScheduler class
+	 * @param client
+	 */
+	public UploadScheduler(Client client) {
+		this.client = client;
+	}
+
+	/**
+	 * This method is used to start telling waiting downloaders their place
+	 */
+	public void start() {
+		reporter = Workers.start("upload-queue", this::reportPositions);
+	}
+
+	/**
+	 * This method is used to drop the waiting uploads and stop reporting
+	 */
+	public synchronized void close() {
+		closed = true;
+		waiting.clear();
+		paused.clear();
+		if (reporter != null) {
+			reporter.interrupt();
+		}
+	}
+
+	/**
+	 * This method is used to add an upload, started now if a slot is free
+	 * @param upload
+	 */
+	public synchronized void submit(Upload upload) {
+		if (closed) {
+			return;
+		}
+		upload.progress.setOnResume(() -> resume(upload));
+		waiting.add(upload);
+		startNext();
+		if (waiting.contains(upload)) {
+			System.out.println("Queued upload of " + upload.fileName + " to " + upload.downloader + ", "
+					+ waiting.size() + " waiting");
+			sendPositions();
+		}
+	}
+
+	/**
+	 * This method is used to queue a paused upload again once it is resumed
+	 * @param upload
+	 */
+	private synchronized void resume(Upload upload) {
+		if (!closed && paused.remove(upload)) {
+			upload.queued = System.currentTimeMillis();
+			waiting.add(upload);
+			startNext();
+			sendPositions();
+		}
+	}
+
+	/**
+	 * This method is used to free the slot of an upload that has ended or
+	 * paused
+	 * @param upload
+	 * @param wasPaused true if the upload stopped because it was paused
+	 */
+	private synchronized void finished(Upload upload, boolean wasPaused) {
+		active--;
+		if (wasPaused && !closed) {
+			paused.add(upload);
+			// it may have been resumed while it was stopping
+			if (!upload.progress.isPaused()) {
+				resume(upload);
+			}
+		}
+		startNext();
+		sendPositions();
+	}
+
+	/**
+	 * This method is used to start the best waiting uploads while slots are
+	 * free
+	 */
+	private synchronized void startNext() {
+		while (active < Settings.UPLOAD_SLOTS && !waiting.isEmpty()) {
+			Upload best = waiting.get(0);
+			long now = System.currentTimeMillis();
+			for (Upload upload : waiting) {
+				if (upload.score(now) < best.score(now)) {
+					best = upload;
+				}
+			}
+			waiting.remove(best);
+			active++;
+			Upload next = best;
+			client.transfers.start("upload-" + next.fileName, () -> {
+				boolean wasPaused = false;
+				try {
+					wasPaused = client.sendUpload(next);
+				} finally {
+					finished(next, wasPaused);
+				}
+			});
+		}
+	}
+
+	/**
+	 * This method is used to tell every waiting downloader its place in line,
+	 * place 0 for a range that the uploader paused
+	 */
+	private synchronized void sendPositions() {
+		ArrayList<Upload> order = new ArrayList<>(waiting);
+		long now = System.currentTimeMillis();
+		order.sort((a, b) -> Double.compare(a.score(now), b.score(now)));
+		for (int i = 0; i < order.size(); i++) {
+			sendPosition(order.get(i), i + 1);
+		}
+		for (Upload upload : paused) {
+			sendPosition(upload, 0);
+		}
+	}
+
+	/**
+	 * This method is used to tell a downloader the place of its range
+	 * @param upload
+	 * @param position
+	 */
+	private void sendPosition(Upload upload, int position) {
+		client.sendMessage(Message.of(Protocol.UPLOAD_QUEUED).putString(upload.downloader).putString(upload.key)
+				.putInt(position));
+	}
+
+	/**
+	 * This method is used to repeat the places well within the stall timeout
+	 * of the downloaders, while anything is waiting
+	 */
+	private void reportPositions() {
+		try {
+			while (!closed) {
+				Thread.sleep(Settings.STALL_TIMEOUT / 2);
+				sendPositions();
+			}
+		} catch (InterruptedException e) {
+			// the client is closing
+		}
+	}
+
+	/**
+	 * This class is used to describe one requested upload and how much of it
+	 * is left
+	 */
+	public static class Upload {
+
+		final String downloader;
+		final String fileName;
+		final String address;
+		final int port;
+		final String key;
+		final boolean sharer; // the downloader shares files too
+		final int codecs; // the DataChannel.CODEC_ bits the downloader offered
+		final TransferProgress progress;
+		private volatile long offset; // first byte not sent yet
+		private volatile long length; // bytes left to send
+		private volatile long queued = System.currentTimeMillis();
+
+		/**
+		 * This is the constructor for the Upload class
+		 * @param downloader
+		 * @param fileName
+		 * @param address where the downloader listens
+		 * @param port
+		 * @param key
+		 * @param offset
+		 * @param length
+		 * @param sharer
+		 * @param codecs
+		 * @param progress
+		 */
+		public Upload(String downloader, String fileName, String address, int port, String key, long offset,
+				long length, boolean sharer, int codecs, TransferProgress progress) {
+			this.downloader = downloader;
+			this.fileName = fileName;
+			this.address = address;
+			this.port = port;
+			this.key = key;
+			this.offset = offset;
+			this.length = length;
+			this.sharer = sharer;
+			this.codecs = codecs;
+			this.progress = progress;
+		}
+
+		/**
+		 * This method is used to get the first byte not sent yet
+		 * @return
+		 */
+		long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * This method is used to get the bytes left to send
+		 * @return
+		 */
+		long getLength() {
+			return length;
+		}
+
+		/**
+		 * This method is used to remember where a paused upload stopped
+		 * @param position the first byte not sent
+		 */
+		void pausedAt(long position) {
+			length -= position - offset;
+			offset = position;
+		}
+
+		/**
+		 * This method is used to rank the upload, the lowest score goes first.
+		 * Smaller ranges score lower, sharers count as a quarter of their
+		 * size and the score halves for every ten seconds spent waiting.
+		 * @param now
+		 * @return
+		 */
+		double score(long now) {
+			double size = sharer ? length / 4.0 : length;
+			return size / Math.pow(2, (now - queued) / 10000.0);
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package com.project5;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class is used to create the threads that run sessions and transfers.
+ * Threads are virtual when the runtime supports them (Java 21 and later) and
+ * virtual threads are enabled, so blocking socket I/O stays cheap for
+ * thousands of peers. Otherwise they are ordinary platform threads.
+ */
+public class Workers {
+
+	private static final ThreadFactory VIRTUAL_FACTORY = createVirtualFactory();
+
+	/**
+	 * This method is used to look up the virtual thread factory. The project
+	 * needs Java 17, as JavaFX 21 does, and Thread.ofVirtual only exists from
+	 * Java 21, so it is found by reflection to build and run on both.
+	 * @return the factory, or null if virtual threads are not available
+	 */
+	private static ThreadFactory createVirtualFactory() {
+		if (!Settings.VIRTUAL_THREADS) {
+			return null;
+		}
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			System.out.println("Virtual threads are not available, using platform threads");
+			return null;
+		}
+	}
+
+	/**
+	 * This method is used to check if tasks run on virtual threads
+	 * @return
+	 */
+	public static boolean isVirtual() {
+		return VIRTUAL_FACTORY != null;
+	}
+
+	/**
+	 * This method is used to create a named, unstarted thread
+	 * @param name
+	 * @param task
+	 * @return
+	 */
+	public static Thread newThread(String name, Runnable task) {
+		Thread thread = VIRTUAL_FACTORY != null ? VIRTUAL_FACTORY.newThread(task) : new Thread(task);
+		thread.setName(name);
+		return thread;
+	}
+
+	/**
+	 * This method is used to start a named thread
+	 * @param name
+	 * @param task
+	 * @return
+	 */
+	public static Thread start(String name, Runnable task) {
+		Thread thread = newThread(name, task);
+		thread.start();
+		return thread;
+	}
+}
@@ -0,0 +1,105 @@
+package com.project5;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+/**
+ * This class is used to test that messages sealed with the session key are
+ * accepted once, in order, and only from the peer
+ */
+public class SessionCipherTest extends TestCase {
+
+	private static final int SENDERS = 8;
+	private static final int MESSAGES = 2000; // per sender
+
+	private SessionCipher server;
+	private SessionCipher client;
+
+	@Override
+	protected void setUp() throws GeneralSecurityException {
+		byte[] key = SessionCipher.generateKey();
+		server = new SessionCipher(key, true);
+		client = new SessionCipher(key, false);
+	}
+
+	/**
+	 * This method is used to check that messages sent from several threads at
+	 * once all reach the peer in an order it accepts
+	 * @throws Exception
+	 */
+	public void testConcurrentSendersStayInNonceOrder() throws Exception {
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(wire);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Throwable> errors = new ArrayList<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int sender = 0; sender < SENDERS; sender++) {
+			int id = sender;
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+					for (int i = 0; i < MESSAGES; i++) {
+						byte[] data = (id + ":" + i).getBytes("UTF-8");
+						server.encryptTo(data, frame -> Frames.write(output, frame));
+					}
+				} catch (Exception e) {
+					synchronized (errors) {
+						errors.add(e);
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(errors.toString(), errors.isEmpty());
+
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(wire.toByteArray()));
+		HashSet<String> received = new HashSet<>();
+		for (int i = 0; i < SENDERS * MESSAGES; i++) {
+			received.add(new String(client.decrypt(Frames.read(input)), "UTF-8"));
+		}
+		assertEquals(SENDERS * MESSAGES, received.size());
+	}
+
+	/**
+	 * This method is used to check that a message is not accepted twice
+	 * @throws Exception
+	 */
+	public void testReplayIsRejected() throws Exception {
+		byte[] frame = server.encrypt(new byte[] { 1, 2, 3 });
+		client.decrypt(frame);
+		try {
+			client.decrypt(frame);
+			fail("A replayed message was accepted");
+		} catch (GeneralSecurityException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * This method is used to check that a message is not accepted by its own
+	 * sender
+	 * @throws Exception
+	 */
+	public void testReflectionIsRejected() throws Exception {
+		try {
+			server.decrypt(server.encrypt(new byte[] { 1, 2, 3 }));
+			fail("A reflected message was accepted");
+		} catch (GeneralSecurityException e) {
+			// expected
+		}
+	}
+}